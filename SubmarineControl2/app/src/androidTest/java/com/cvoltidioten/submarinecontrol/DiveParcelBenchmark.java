@@ -0,0 +1,110 @@
+package com.cvoltidioten.submarinecontrol;
+
+import android.os.Parcel;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * Compares parceling a dive with its samples packed in bulk against parceling one Datum per
+ * sample, as it was done before. The timings are logged with the tag "DiveParcelBenchmark".
+ */
+public class DiveParcelBenchmark extends TestCase {
+    private static final String TAG = "DiveParcelBenchmark";
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 10;
+
+    private static Dive createDive(int amountOfSamples) {
+        Dive dive = new Dive(10, 0);
+        SampleColumns samples = new SampleColumns(amountOfSamples);
+        for(int i = 0; i < amountOfSamples; i++) {
+            samples.add(i, i * 0.01f, 20 - i * 0.0001f, 1 + i * 0.001f);
+        }
+        dive.addSamples(samples);
+        return dive;
+    }
+
+    /**
+     * Writes and reads the dive using the packed encoding.
+     * @return The dive read back.
+     */
+    private static Dive roundTripPacked(Dive dive) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeParcelable(dive, 0);
+            parcel.setDataPosition(0);
+            return parcel.readParcelable(Dive.class.getClassLoader());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Writes and reads the samples of the dive one Datum at a time.
+     * @return The amount of samples read back.
+     */
+    private static int roundTripPerDatum(Dive dive) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            List<Datum> data = dive.getData();
+            parcel.writeInt(data.size());
+            for(Datum datum : data) {
+                parcel.writeParcelable(datum, 0);
+            }
+            parcel.setDataPosition(0);
+            int amountOfData = parcel.readInt();
+            for(int i = 0; i < amountOfData; i++) {
+                parcel.readParcelable(Datum.class.getClassLoader());
+            }
+            return amountOfData;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static void benchmark(int amountOfSamples) {
+        Dive dive = createDive(amountOfSamples);
+        for(int i = 0; i < WARMUP_ROUNDS; i++) {
+            roundTripPacked(dive);
+            roundTripPerDatum(dive);
+        }
+        long start = System.nanoTime();
+        for(int i = 0; i < ROUNDS; i++) {
+            Dive read = roundTripPacked(dive);
+            assertEquals(amountOfSamples, read.getSamples().size());
+        }
+        long packedNs = (System.nanoTime() - start) / ROUNDS;
+        start = System.nanoTime();
+        for(int i = 0; i < ROUNDS; i++) {
+            assertEquals(amountOfSamples, roundTripPerDatum(dive));
+        }
+        long perDatumNs = (System.nanoTime() - start) / ROUNDS;
+        Log.i(TAG, amountOfSamples + " samples: packed " + packedNs / 1000 + " us, per Datum "
+                + perDatumNs / 1000 + " us");
+    }
+
+    public void testPackedRoundTripKeepsSamples() {
+        Dive dive = createDive(1000);
+        Dive read = roundTripPacked(dive);
+        assertEquals(dive.getDepthM(), read.getDepthM());
+        assertEquals(dive.getStartingTime(), read.getStartingTime());
+        for(int i = 0; i < 1000; i++) {
+            assertEquals(dive.getSamples().getTimestamp(i), read.getSamples().getTimestamp(i));
+            assertEquals(dive.getSamples().getPressure(i), read.getSamples().getPressure(i));
+        }
+    }
+
+    public void testBenchmark1k() {
+        benchmark(1000);
+    }
+
+    public void testBenchmark10k() {
+        benchmark(10000);
+    }
+
+    public void testBenchmark100k() {
+        benchmark(100000);
+    }
+}
@@ -0,0 +1,57 @@
+package com.cvoltidioten.submarinecontrol;
+
+/**
+ * Reads values of arbitrary bit widths written by a BitWriter.
+ */
+final class BitReader {
+    private final byte[] bytes;
+    private final int limit;
+    // The index of the next byte to load.
+    private int position;
+    // The bits loaded but not read yet, in the low bits.
+    private long pending = 0;
+    private int pendingBits = 0;
+
+    /**
+     * Creates a reader for the given range of bytes.
+     * @param bytes The bytes to read.
+     * @param offset The index of the first byte.
+     * @param length The amount of bytes.
+     */
+    BitReader(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    /**
+     * Reads an unsigned value.
+     * @param count The amount of bits to read, at most 32.
+     * @return The value read.
+     * @throws IllegalStateException In case the bytes are exhausted.
+     */
+    long read(int count) {
+        while(this.pendingBits < count) {
+            if(this.position == this.limit) {
+                throw new IllegalStateException("Read beyond the end of the bits");
+            }
+            this.pending = (this.pending << 8) | (this.bytes[this.position++] & 0xFF);
+            this.pendingBits += 8;
+        }
+        this.pendingBits -= count;
+        return (this.pending >>> this.pendingBits) & ((1L << count) - 1);
+    }
+
+    /**
+     * Reads a signed value written in two's complement.
+     * @param count The amount of bits to read, at most 32.
+     * @return The value read.
+     */
+    long readSigned(int count) {
+        return (read(count) << (64 - count)) >> (64 - count);
+    }
+
+    boolean readBit() {
+        return read(1) == 1;
+    }
+}
@@ -0,0 +1,71 @@
+package com.cvoltidioten.submarinecontrol;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Collects values of arbitrary bit widths into bytes, most significant bit first.
+ */
+final class BitWriter {
+    private byte[] bytes = new byte[256];
+    // The amount of complete bytes.
+    private int length = 0;
+    // The bits not yet forming a complete byte, in the low bits.
+    private long pending = 0;
+    private int pendingBits = 0;
+
+    /**
+     * Writes the low bits of the given value.
+     * @param value The value to write.
+     * @param count The amount of bits to write, at most 32.
+     */
+    void write(long value, int count) {
+        this.pending = (this.pending << count) | (value & ((1L << count) - 1));
+        this.pendingBits += count;
+        while(this.pendingBits >= 8) {
+            if(this.length == this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, this.length * 2);
+            }
+            this.pendingBits -= 8;
+            this.bytes[this.length++] = (byte)(this.pending >>> this.pendingBits);
+        }
+    }
+
+    /**
+     * Writes a single bit.
+     * @param bit The bit to write.
+     */
+    void writeBit(boolean bit) {
+        write(bit ? 1 : 0, 1);
+    }
+
+    /**
+     * Returns the amount of bytes written so far, counting a partly written byte.
+     * @return The amount of bytes.
+     */
+    int byteLength() {
+        return this.length + (this.pendingBits > 0 ? 1 : 0);
+    }
+
+    /**
+     * Writes the bits written so far to the output, padding the last byte with zeros.
+     * @param out The output to write to.
+     * @throws IOException In case writing failed.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.write(this.bytes, 0, this.length);
+        if(this.pendingBits > 0) {
+            out.write((int)(this.pending << (8 - this.pendingBits)));
+        }
+    }
+
+    /**
+     * Removes all bits written, keeping the buffer.
+     */
+    void reset() {
+        this.length = 0;
+        this.pending = 0;
+        this.pendingBits = 0;
+    }
+}
@@ -7,17 +7,17 @@ import android.support.v7.widget.Toolbar;
 import android.util.Log;
 import android.view.View;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.github.mikephil.charting.charts.LineChart;
 import com.github.mikephil.charting.data.Entry;
 import com.github.mikephil.charting.data.LineData;
 import com.github.mikephil.charting.data.LineDataSet;
-import com.opencsv.CSVWriter;
-
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -25,8 +25,14 @@ import java.util.List;
  */
 public class DataActivity extends AppCompatActivity {
     private final static String TAG = "DataActivity";
+    // The id of the dive in the DiveRepository to display.
+    final static String EXTRA_DIVE_ID = "dive_id";
 
     private Dive dive;
+    // The id the dive was acquired with, -1 if it was not acquired.
+    private long diveId = -1;
+    // The running export, if any, which is detached when this activity is destroyed.
+    private DiveExportTask export;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -34,43 +40,91 @@ public class DataActivity extends AppCompatActivity {
         setContentView(R.layout.activity_data);
         ((Toolbar)findViewById(R.id.toolbar)).setTitle("Collected data");
 
-        // Obtains dive data from the intent.
+        // Obtains the dive passed by the intent from the repository.
         Bundle extras = getIntent().getExtras();
-        if(extras != null) {
-            this.dive = extras.getParcelable("dive");
-        } else {
+        if(extras == null || !extras.containsKey(EXTRA_DIVE_ID)) {
             Log.e(TAG, "Could not retrieve dive data from intent.");
-            // Displays some fake data.
-            List<SubmarineProtos.Datum> fakeData = new ArrayList<>();
-            for(int i = 0; i < 12; i++) {
-                fakeData.add(SubmarineProtos.Datum.newBuilder()
-                                .setDepth(i)
-                                .setPressure((float) i * 10)
-                                .setTemperature((float) ((30 - i) + Math.random() * 4))
-                                .setTimestamp(1)
-                                .build()
-                );
-            }
-            this.dive = new Dive(0, 0, fakeData);
+            showError();
+            return;
         }
+        final long id = extras.getLong(EXTRA_DIVE_ID);
+        Dive dive = DiveRepository.getInstance().acquire(id);
+        if(dive != null) {
+            this.diveId = id;
+            showDive(dive);
+            return;
+        }
+        // The dive was dropped from the repository or the process was restarted since, so it is
+        // loaded from the store once the store is open.
+        DiveStore.open(this, new DiveStore.DiveStoreNotifyable() {
+            @Override
+            public void receiveStore(DiveStore store) {
+                Dive dive = null;
+                try {
+                    dive = store.load(id);
+                } catch(IOException e) {
+                    Log.e(TAG, "Unable to load dive " + id, e);
+                }
+                final Dive loaded = dive;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(isDestroyed()) {
+                            return;
+                        }
+                        if(loaded == null) {
+                            showError();
+                            return;
+                        }
+                        diveId = DiveRepository.getInstance().put(loaded);
+                        showDive(DiveRepository.getInstance().acquire(diveId));
+                    }
+                });
+            }
+
+            @Override
+            public void receiveFailure(IOException failure) {
+                Log.e(TAG, "Unable to open the dive store", failure);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        showError();
+                    }
+                });
+            }
+        });
+    }
 
+    /**
+     * Shows the data of the given dive.
+     * @param dive The dive to show.
+     */
+    private void showDive(Dive dive) {
+        this.dive = dive;
+        DiveSamples samples = dive.getSamples();
+        if(samples.size() == 0) {
+            // Nothing to chart, e.g. the download was cancelled before the first chunk.
+            showError(R.string.dive_empty);
+            return;
+        }
         // Fills chart with the obtained data.
         LineChart chart = (LineChart)findViewById(R.id.data_chart);
-        List<Datum> diveData = this.dive.getData();
-        ArrayList<Entry> tempDataList = new ArrayList<>();
-        ArrayList<Entry> depthDataList = new ArrayList<>();
-        ArrayList<String> labels = new ArrayList<>();
-        double minTemp = diveData.get(0).getTemperatureC();
-        double maxDepth = diveData.get(0).getDepthM();
-        for(int i = 0; i < diveData.size(); i++) {
-            tempDataList.add(new Entry((float)diveData.get(i).getTemperatureC(), i));
-            depthDataList.add(new Entry((float)diveData.get(i).getDepthM(), i));
+        ArrayList<Entry> tempDataList = new ArrayList<>(samples.size());
+        ArrayList<Entry> depthDataList = new ArrayList<>(samples.size());
+        ArrayList<String> labels = new ArrayList<>(samples.size());
+        float minTemp = samples.getTemperature(0);
+        float maxDepth = samples.getDepth(0);
+        for(int i = 0; i < samples.size(); i++) {
+            float temperature = samples.getTemperature(i);
+            float depth = samples.getDepth(i);
+            tempDataList.add(new Entry(temperature, i));
+            depthDataList.add(new Entry(depth, i));
             labels.add(Integer.toString(i));
-            if(diveData.get(i).getTemperatureC() < minTemp) {
-                minTemp = diveData.get(i).getTemperatureC();
+            if(temperature < minTemp) {
+                minTemp = temperature;
             }
-            if(diveData.get(i).getDepthM() > maxDepth) {
-                maxDepth = diveData.get(i).getDepthM();
+            if(depth > maxDepth) {
+                maxDepth = depth;
             }
         }
         LineDataSet tempDataSet = new LineDataSet(tempDataList, "Temperature [°C]");
@@ -88,26 +142,54 @@ public class DataActivity extends AppCompatActivity {
     }
 
     /**
-     * Is called when the user presses the save button. It saves the data to a CSV file on the
-     * external storage.
+     * Tells the user that the dive could not be found, instead of showing any data.
+     */
+    private void showError() {
+        showError(R.string.dive_not_found);
+    }
+
+    /**
+     * Tells the user why no data is shown.
+     * @param message The id of the string explaining why.
+     */
+    private void showError(int message) {
+        ((LineChart)findViewById(R.id.data_chart)).setNoDataText(getString(message));
+        Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if(this.export != null) {
+            this.export.detach();
+            this.export = null;
+        }
+        if(this.diveId != -1) {
+            DiveRepository.getInstance().release(this.diveId);
+            this.diveId = -1;
+        }
+    }
+
+    /**
+     * Is called when the user presses the save button. It exports the data to a CSV file on the
+     * external storage, and the complete dive to a compact dive file next to it, in the
+     * background. The start activity is started once the export is done.
      * @param view Is ignored.
      */
     public void save(View view) {
-        String csv = android.os.Environment.getExternalStorageDirectory().getAbsolutePath() + "/dive.csv";
-        try {
-            CSVWriter writer = new CSVWriter(new FileWriter(csv));
-            List<String[]> data = new ArrayList<String[]>();
-            for(Datum datum : this.dive.getData()) {
-                data.add(new String[]{Double.toString(datum.getDepthM()), Double.toString(datum.getTemperatureC())});
-            }
-            writer.writeAll(data);
-            writer.close();
-        } catch (IOException e) {
-            Log.e(TAG, "Error on writing CSV to storage", e);
+        if(this.dive == null) {
+            showError();
+            return;
         }
-
-        Intent intent = new Intent(this, StartActivity.class);
-        startActivity(intent);
+        File file = new File(android.os.Environment.getExternalStorageDirectory(), "dive.csv");
+        this.export = new DiveExportTask(this, Collections.singletonList(this.dive), file, new DiveExportTask.Listener() {
+            @Override
+            public void onExported(File file) {
+                Intent intent = new Intent(DataActivity.this, StartActivity.class);
+                startActivity(intent);
+            }
+        });
+        this.export.execute();
     }
 
     /**
@@ -0,0 +1,85 @@
+package com.cvoltidioten.submarinecontrol;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reassembles fragmented data transfers. The submarine may split the data of a dive into several
+ * DATA messages, each carrying the id of its transfer, its index and the total amount of
+ * fragments. Fragments may arrive in any order and duplicates are ignored. Once all fragments of a
+ * transfer arrived, they are merged into a single DATA message holding the whole data in fragment
+ * order. The data of the fragments is only copied column by column.
+ */
+class DataReassembler {
+    // The maximum amount of fragments a single transfer may consist of.
+    private static final int MAX_FRAGMENTS = 1 << 16;
+    // The maximum amount of incomplete transfers kept at once, the oldest one is dropped first.
+    private static final int MAX_TRANSFERS = 4;
+
+    // The incomplete transfers by their id, in order of their first fragment.
+    private final Map<Long, Transfer> transfers = new LinkedHashMap<>();
+
+    /**
+     * Adds the given fragment to its transfer.
+     * @param fragment A decoded DATA message carrying fragment information.
+     * @return The merged message if the transfer is complete now, null otherwise.
+     */
+    DecodedMessage add(DecodedMessage fragment) {
+        long transferId = SubmarineProtocol.getTransferId(fragment.message);
+        int index = SubmarineProtocol.getFragmentIndex(fragment.message);
+        int count = SubmarineProtocol.getFragmentCount(fragment.message);
+        if(count < 1 || count > MAX_FRAGMENTS || index < 0 || index >= count) {
+            return null;
+        }
+        Transfer transfer = this.transfers.get(transferId);
+        if(transfer == null || transfer.fragments.length != count) {
+            transfer = new Transfer(count);
+            this.transfers.remove(transferId);
+            this.transfers.put(transferId, transfer);
+            if(this.transfers.size() > MAX_TRANSFERS) {
+                Iterator<Long> oldest = this.transfers.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+        if(transfer.fragments[index] == null) {
+            transfer.fragments[index] = fragment;
+            transfer.received++;
+        }
+        if(transfer.received < count) {
+            return null;
+        }
+        this.transfers.remove(transferId);
+        SubmarineProtos.SubmarineMessage.Builder merged = transfer.fragments[0].message.toBuilder();
+        SubmarineProtocol.clearFragment(merged);
+        int size = 0;
+        for(DecodedMessage part : transfer.fragments) {
+            size += part.samples.size();
+        }
+        SampleColumns samples = new SampleColumns(size);
+        for(DecodedMessage part : transfer.fragments) {
+            samples.addAll(part.samples);
+        }
+        return new DecodedMessage(merged.build(), samples);
+    }
+
+    /**
+     * Drops all incomplete transfers.
+     */
+    void clear() {
+        this.transfers.clear();
+    }
+
+    /**
+     * The fragments of one transfer received so far.
+     */
+    private static class Transfer {
+        private final DecodedMessage[] fragments;
+        private int received = 0;
+
+        private Transfer(int count) {
+            this.fragments = new DecodedMessage[count];
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.cvoltidioten.submarinecontrol;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+
+/**
+ * Decodes received messages, appending the samples of DATA messages straight into columns instead
+ * of creating a Datum object per sample. All other fields are copied into a reusable buffer and
+ * parsed as usual, so the decoded message is equal to the parsed one without its data.
+ * Not thread safe, use one decoder per connection.
+ */
+class DatumDecoder {
+    // The usual encoded size of a sample including its header, used to size the columns up front.
+    private static final int TYPICAL_DATUM_SIZE = 20;
+    // The bit mask of the fields of a sample, by field number.
+    private static final int ALL_FIELDS = 1 << SubmarineProtos.Datum.TIMESTAMP_FIELD_NUMBER
+            | 1 << SubmarineProtos.Datum.DEPTH_FIELD_NUMBER
+            | 1 << SubmarineProtos.Datum.TEMPERATURE_FIELD_NUMBER
+            | 1 << SubmarineProtos.Datum.PRESSURE_FIELD_NUMBER;
+
+    // Holds the fields of the message but the samples.
+    private byte[] headerBuffer = new byte[256];
+
+    /**
+     * Decodes the given encoded message.
+     * @param buffer The buffer containing the message.
+     * @param offset The position of the message.
+     * @param length The length of the message.
+     * @return The decoded message, with samples if it is a DATA message.
+     * @throws InvalidProtocolBufferException In case the message is malformed.
+     */
+    DecodedMessage decode(byte[] buffer, int offset, int length) throws InvalidProtocolBufferException {
+        if(this.headerBuffer.length < length) {
+            this.headerBuffer = new byte[Math.max(length, this.headerBuffer.length * 2)];
+        }
+        CodedInputStream input = CodedInputStream.newInstance(buffer, offset, length);
+        CodedOutputStream header = CodedOutputStream.newInstance(this.headerBuffer, 0, length);
+        SampleColumns samples = null;
+        try {
+            while(true) {
+                int tag = input.readTag();
+                if(tag == 0) {
+                    break;
+                }
+                if(WireFormat.getTagFieldNumber(tag) == SubmarineProtos.SubmarineMessage.DATA_FIELD_NUMBER
+                        && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                    if(samples == null) {
+                        samples = new SampleColumns(Math.max(1, length / TYPICAL_DATUM_SIZE));
+                    }
+                    int limit = input.pushLimit(input.readRawVarint32());
+                    readDatum(input, samples);
+                    input.popLimit(limit);
+                } else {
+                    input.skipField(tag, header);
+                }
+            }
+            header.flush();
+        } catch (InvalidProtocolBufferException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new InvalidProtocolBufferException(e.getMessage());
+        }
+        SubmarineProtos.SubmarineMessage message = SubmarineProtos.SubmarineMessage.parser().parseFrom(
+                this.headerBuffer, 0, length - header.spaceLeft());
+        if(message.getType() == SubmarineProtos.SubmarineMessage.MessageType.DATA && samples == null) {
+            samples = new SampleColumns(0);
+        }
+        return new DecodedMessage(message, samples);
+    }
+
+    /**
+     * Reads the fields of a single sample up to the current limit and appends it. Unknown fields
+     * are skipped.
+     * @param input The input positioned at the first field of the sample.
+     * @param samples The columns to append to.
+     * @throws IOException In case the sample is malformed or misses a required field.
+     */
+    private static void readDatum(CodedInputStream input, SampleColumns samples) throws IOException {
+        int timestamp = 0;
+        float depth = 0;
+        float temperature = 0;
+        float pressure = 0;
+        // The bit mask of the fields read, by field number.
+        int present = 0;
+        while(true) {
+            int tag = input.readTag();
+            if(tag == 0) {
+                break;
+            }
+            switch(tag) {
+                case (SubmarineProtos.Datum.TIMESTAMP_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_VARINT:
+                    timestamp = input.readUInt32();
+                    present |= 1 << SubmarineProtos.Datum.TIMESTAMP_FIELD_NUMBER;
+                    break;
+                case (SubmarineProtos.Datum.DEPTH_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_FIXED32:
+                    depth = input.readFloat();
+                    present |= 1 << SubmarineProtos.Datum.DEPTH_FIELD_NUMBER;
+                    break;
+                case (SubmarineProtos.Datum.TEMPERATURE_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_FIXED32:
+                    temperature = input.readFloat();
+                    present |= 1 << SubmarineProtos.Datum.TEMPERATURE_FIELD_NUMBER;
+                    break;
+                case (SubmarineProtos.Datum.PRESSURE_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_FIXED32:
+                    pressure = input.readFloat();
+                    present |= 1 << SubmarineProtos.Datum.PRESSURE_FIELD_NUMBER;
+                    break;
+                default:
+                    input.skipField(tag);
+                    break;
+            }
+        }
+        // All fields of a sample are required.
+        if(present != ALL_FIELDS) {
+            throw new InvalidProtocolBufferException("Datum is missing required fields");
+        }
+        samples.add(timestamp, depth, temperature, pressure);
+    }
+}
@@ -0,0 +1,45 @@
+package com.cvoltidioten.submarinecontrol;
+
+/**
+ * A message received from the submarine whose samples were decoded into columns. The message
+ * itself carries everything but the samples. The samples are shared by everyone the message is
+ * delivered to and must not be changed.
+ */
+class DecodedMessage {
+    final SubmarineProtos.SubmarineMessage message;
+    // The samples of a DATA message, null for other types.
+    final SampleColumns samples;
+    // The message including its samples, built on first use.
+    private volatile SubmarineProtos.SubmarineMessage completeMessage;
+
+    DecodedMessage(SubmarineProtos.SubmarineMessage message, SampleColumns samples) {
+        this.message = message;
+        this.samples = samples;
+    }
+
+    /**
+     * Returns the message as sent by the submarine, with the samples put back as data. This
+     * creates an object per sample, so it should only be used by those who need the data in this
+     * form.
+     * @return The complete message.
+     */
+    SubmarineProtos.SubmarineMessage toMessage() {
+        if(this.samples == null || this.samples.size() == 0) {
+            return this.message;
+        }
+        SubmarineProtos.SubmarineMessage completeMessage = this.completeMessage;
+        if(completeMessage == null) {
+            SubmarineProtos.SubmarineMessage.Builder builder = this.message.toBuilder();
+            for(int i = 0; i < this.samples.size(); i++) {
+                builder.addData(SubmarineProtos.Datum.newBuilder()
+                        .setTimestamp((int)this.samples.getTimestamp(i))
+                        .setDepth(this.samples.getDepth(i))
+                        .setTemperature(this.samples.getTemperature(i))
+                        .setPressure(this.samples.getPressure(i)));
+            }
+            completeMessage = builder.build();
+            this.completeMessage = completeMessage;
+        }
+        return completeMessage;
+    }
+}
@@ -4,23 +4,38 @@ import android.os.Parcel;
 import android.os.Parcelable;
 
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Represents one dive done by the submarine, including the starting time, offset, depth and the
- * later obtained data points.
+ * later obtained data points. The data points are stored in primitive columns; the Datum objects
+ * returned by getData() are created on access.
  */
 class Dive implements Parcelable, Serializable {
-    private List<Datum> data = new ArrayList<>();
+    // The source of dive ids, seeded with the time such that ids of different runs hardly collide.
+    // The DiveStore moves it past the ids it holds, such that they never collide.
+    private static final AtomicLong NEXT_ID = new AtomicLong(System.currentTimeMillis());
+
+    // Identifies the dive, for example in the DiveRepository.
+    private final long id;
+    // The samples, either downloaded onto the heap or mapped from the DiveStore.
+    private DiveSamples samples = new SampleColumns();
     private int depthM;
     private int offsetS;
-    private int amountOfData;
     private Date startingTime;
+    // Whether all data of the dive was downloaded.
+    private boolean complete = false;
+    // Incremented with every change of the samples.
+    private volatile long version = 0;
+    // The version of the last change which did not only append samples.
+    private volatile long resetVersion = 0;
 
     public Dive(int depthM, int offsetS) {
+        this.id = NEXT_ID.getAndIncrement();
         this.depthM = depthM;
         this.offsetS = offsetS;
         Calendar cal = Calendar.getInstance();
@@ -29,33 +44,170 @@ class Dive implements Parcelable, Serializable {
     }
 
     public Dive(int depthM, int offsetS, List<SubmarineProtos.Datum> data) {
+        this.id = NEXT_ID.getAndIncrement();
         this.depthM = depthM;
         this.offsetS = offsetS;
         Calendar cal = Calendar.getInstance();
         cal.add(Calendar.SECOND, offsetS);
         this.startingTime = cal.getTime();
-        this.data.clear();
-        for(SubmarineProtos.Datum datum : data) {
-            this.data.add(new Datum(datum.getDepth(), datum.getTemperature(), datum.getPressure(), datum.getTimestamp()));
+        this.samples = SampleColumns.of(data);
+    }
+
+    /**
+     * Creates a dive read from the DiveStore. Its samples cannot be appended to.
+     * @param id The id of the dive.
+     * @param depthM The depth of the dive.
+     * @param offsetS The offset of the dive.
+     * @param startingTime The time the dive started.
+     * @param samples The stored samples.
+     */
+    Dive(long id, int depthM, int offsetS, Date startingTime, DiveSamples samples) {
+        this.id = id;
+        this.depthM = depthM;
+        this.offsetS = offsetS;
+        this.startingTime = startingTime;
+        this.samples = samples;
+        this.complete = true;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Makes sure the ids of dives created from now on are greater than the given id.
+     * @param id The id not to hand out, e.g. the id of a stored dive.
+     */
+    static void skipIds(long id) {
+        long next = NEXT_ID.get();
+        while(next <= id && !NEXT_ID.compareAndSet(next, id + 1)) {
+            next = NEXT_ID.get();
         }
-        this.amountOfData = data.size();
     }
 
+    /**
+     * Returns the samples of this dive column by column. Scans over many samples should use these
+     * instead of getData().
+     * @return The samples.
+     */
+    public DiveSamples getSamples() {
+        return this.samples;
+    }
+
+    /**
+     * Returns a view of the samples of this dive as Datum objects, which are created on access.
+     * @return The data of this dive.
+     */
     public List<Datum> getData() {
-        return data;
+        return new AbstractList<Datum>() {
+            @Override
+            public Datum get(int index) {
+                return new Datum(samples.getDepth(index), samples.getTemperature(index),
+                        samples.getPressure(index), samples.getTimestamp(index));
+            }
+
+            @Override
+            public int size() {
+                return samples.size();
+            }
+        };
     }
 
+    /**
+     * Replaces the data of this dive. Views have to redraw all samples afterwards.
+     * @param data The new data, null to remove all data.
+     */
     public void setData(List<SubmarineProtos.Datum> data) {
-        if(data != null && this.data != null) {
-            this.data.clear();
-            for(SubmarineProtos.Datum datum : data) {
-                this.data.add(new Datum(datum.getDepth(), datum.getTemperature(), datum.getPressure(), datum.getTimestamp()));
+        this.complete = false;
+        this.samples = data == null ? new SampleColumns() : SampleColumns.of(data);
+        this.resetVersion = this.version + 1;
+        this.version = this.resetVersion;
+    }
+
+    /**
+     * Appends the given data to the data of this dive in place. The samples of a dive are kept in
+     * strictly ascending timestamp order, so samples whose timestamp is not after the last one
+     * stored, like those resent in an overlapping chunk, are skipped. Appending costs time in
+     * the amount of new samples only.
+     * @param data The data to append.
+     * @return The amount of samples appended.
+     */
+    public int addData(List<SubmarineProtos.Datum> data) {
+        return addSamples(SampleColumns.of(data));
+    }
+
+    /**
+     * Appends the given samples like addData() does.
+     * @param data The samples to append.
+     * @return The amount of samples appended.
+     */
+    public int addSamples(SampleColumns data) {
+        if(!(this.samples instanceof SampleColumns)) {
+            throw new IllegalStateException("The samples of a stored dive cannot be appended to");
+        }
+        SampleColumns samples = (SampleColumns)this.samples;
+        long last = getLastTimestamp();
+        int added = 0;
+        int index = 0;
+        while(index < data.size()) {
+            while(index < data.size() && data.getTimestamp(index) <= last) {
+                index++;
+            }
+            // Copies the following run of ascending samples in one go.
+            int start = index;
+            while(index < data.size() && data.getTimestamp(index) > last) {
+                last = data.getTimestamp(index);
+                index++;
             }
-            this.amountOfData = data.size();
-        } else {
-            this.data = new ArrayList<>();
-            this.amountOfData = 0;
+            samples.addAll(data, start, index);
+            added += index - start;
+        }
+        if(added > 0) {
+            this.version++;
+        }
+        return added;
+    }
+
+    /**
+     * Returns the version of the samples, which changes whenever samples are added or replaced.
+     * Views remember the version and the amount of samples they drew to find out what changed
+     * using getFirstChangedIndex().
+     * @return The current version.
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Returns the index of the first sample which has to be redrawn by a view which drew the
+     * given amount of samples at the given version. Samples are only appended unless setData()
+     * was called since, so all samples before the amount drawn stay the same.
+     * @param drawnVersion The version the view drew.
+     * @param drawnCount The amount of samples the view drew.
+     * @return The index of the first sample to redraw.
+     */
+    public int getFirstChangedIndex(long drawnVersion, int drawnCount) {
+        if(drawnVersion < this.resetVersion) {
+            return 0;
         }
+        return Math.min(drawnCount, this.samples.size());
+    }
+
+    /**
+     * Returns the timestamp of the last sample received, -1 if no data was received yet.
+     * @return The timestamp of the last sample.
+     */
+    public long getLastTimestamp() {
+        int size = this.samples.size();
+        return size == 0 ? -1 : this.samples.getTimestamp(size - 1);
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public void setComplete(boolean complete) {
+        this.complete = complete;
     }
 
     public int getDepthM() {
@@ -74,14 +226,17 @@ class Dive implements Parcelable, Serializable {
         return 0;
     }
 
+    /**
+     * Writes the dive into the given parcel. The samples are packed into one byte array, which
+     * the parcel copies in one go, instead of being written value by value.
+     */
     public void writeToParcel(Parcel out, int flags) {
+        out.writeLong(this.id);
         out.writeInt(this.depthM);
         out.writeInt(this.offsetS);
-        out.writeInt(this.amountOfData);
         out.writeSerializable(this.startingTime);
-        for(int i = 0; i < this.data.size(); i++) {
-            out.writeParcelable(this.data.get(i), flags);
-        }
+        SampleColumns columns = this.samples instanceof SampleColumns ? (SampleColumns)this.samples : SampleColumns.copyOf(this.samples);
+        out.writeByteArray(columns.pack());
     }
 
     public static final Parcelable.Creator<Dive> CREATOR
@@ -96,13 +251,10 @@ class Dive implements Parcelable, Serializable {
     };
 
     private Dive(Parcel in) {
+        this.id = in.readLong();
         this.depthM = in.readInt();
         this.offsetS = in.readInt();
-        this.amountOfData = in.readInt();
         this.startingTime = (Date)in.readSerializable();
-        this.data = new ArrayList<>();
-        for(int i = 0; i < this.amountOfData; i++) {
-            this.data.add((Datum) in.readParcelable(Datum.class.getClassLoader()));
-        }
+        this.samples = SampleColumns.unpack(in.createByteArray());
     }
 }
@@ -2,7 +2,6 @@ package com.cvoltidioten.submarinecontrol;
 
 import android.content.Intent;
 import android.os.Bundle;
-import android.os.Parcelable;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 import android.util.Log;
@@ -12,8 +11,12 @@ import android.view.animation.Transformation;
 import android.widget.ImageView;
 import android.widget.RelativeLayout;
 
-public class DiveActivity extends AppCompatActivity implements SubmarineConnector.SubmarineConnectionNotifyable, SubmarineConnector.SubmarineMessageNotifyable {
+import java.io.IOException;
+
+public class DiveActivity extends AppCompatActivity implements SubmarineConnector.SubmarineConnectionNotifyable {
     private final static String TAG = "DiveActivity";
+    // The id of the scheduled dive to download the data into, passed by the starting intent.
+    final static String EXTRA_DIVE_ID = "dive_id";
 
     private Submarine submarine;
 
@@ -22,7 +25,41 @@ public class DiveActivity extends AppCompatActivity implements SubmarineConnecto
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_dive);
         try {
-            this.submarine = new Submarine();
+            final Submarine submarine = new Submarine();
+            this.submarine = submarine;
+            final boolean scheduled = getIntent().hasExtra(EXTRA_DIVE_ID);
+            final long diveId = getIntent().getLongExtra(EXTRA_DIVE_ID, 0);
+            if(scheduled) {
+                // The data is requested once the scheduled dive is continued.
+                findViewById(R.id.data_progress_bar).setVisibility(View.VISIBLE);
+                findViewById(R.id.data_button).setVisibility(View.INVISIBLE);
+            }
+            DiveStore.open(this, new DiveStore.DiveStoreNotifyable() {
+                @Override
+                public void receiveStore(DiveStore store) {
+                    submarine.setDiveStore(store);
+                    if(scheduled) {
+                        // Downloads into the dive stored when it was scheduled instead of a new one.
+                        try {
+                            Dive dive = store.resume(diveId);
+                            if(dive != null) {
+                                submarine.resumeDive(dive);
+                            } else {
+                                Log.w(TAG, "The scheduled dive " + diveId + " is not stored");
+                            }
+                        } catch(IOException | InterruptedException e) {
+                            Log.e(TAG, "Unable to load the scheduled dive", e);
+                        }
+                        showDataButton();
+                    }
+                }
+
+                @Override
+                public void receiveFailure(IOException failure) {
+                    Log.e(TAG, "Unable to open the dive store, the dive is not kept", failure);
+                    showDataButton();
+                }
+            });
         } catch(SubmarineBluetoothConnector.HardwareException hwe) {
             Log.v(TAG, "Unable to connect to submarine", hwe);
         }
@@ -50,56 +87,74 @@ public class DiveActivity extends AppCompatActivity implements SubmarineConnecto
         super.onPause();
         if(this.submarine != null) {
             this.submarine.removeConnectionStatusReceiver(TAG);
-            this.submarine.removeMessageReceiver(TAG);
         }
     }
 
     @Override
     public void receiveConnectionStatus(boolean status) {
-        if(status) {
-            submarine.updateStatus();
-        } else {
-            runOnUiThread(new Runnable() {
+        if(status && submarine != null) {
+            // Pipelines the status and the first data request instead of waiting for the status.
+            // The submarine requests the remaining chunks by itself until the dive is complete.
+            submarine.requestStatus();
+            submarine.requestData().addReceiver(new SubmarineConnector.SubmarineResponseNotifyable() {
+                @Override
+                public void receiveResponse(SubmarineProtos.SubmarineMessage message) {
+                    showData();
+                }
+
                 @Override
-                public void run() {
-                    findViewById(R.id.data_progress_bar).setVisibility(View.INVISIBLE);
-                    findViewById(R.id.data_button).setVisibility(View.VISIBLE);
+                public void receiveFailure(Exception failure) {
+                    Log.e(TAG, "Data request failed", failure);
+                    showDataButton();
                 }
             });
+        } else if(!status) {
+            showDataButton();
         }
     }
 
+    /**
+     * Hides the progress bar and lets the user request the data again.
+     */
+    private void showDataButton() {
+        runOnUiThread(new Runnable() {
             @Override
-    public void receiveMessage(SubmarineProtos.SubmarineMessage message) {
-        if(message.getType() == SubmarineProtos.SubmarineMessage.MessageType.STATUS) {
-            submarine.updateData();
-        } else if(message.getType() == SubmarineProtos.SubmarineMessage.MessageType.DATA) {
-            final DiveActivity thisActivity = this;
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    Intent intent = new Intent(thisActivity, DataActivity.class);
-                    // Passes data to data activity.
-                    if(submarine != null) {
-                        intent.putExtra("dive", (Parcelable)submarine.getDives().get(submarine.getDives().size() - 1));
-                    }
-                    if(submarine != null) {
-                        submarine.removeConnectionStatusReceiver(TAG);
-                        submarine.removeMessageReceiver(TAG);
-                        submarine.disconnect();
-                        submarine = null;
-                    }
-                    startActivity(intent);
-                }
-            });
+            public void run() {
+                findViewById(R.id.data_progress_bar).setVisibility(View.INVISIBLE);
+                findViewById(R.id.data_button).setVisibility(View.VISIBLE);
+            }
+        });
+    }
+
+    /**
+     * Shows the data of the downloaded dive.
+     */
+    private void showData() {
+        final Dive dive = submarine == null ? null : submarine.getState().getCurrentDive();
+        if(dive == null) {
+            return;
         }
+        final DiveActivity thisActivity = this;
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Intent intent = new Intent(thisActivity, DataActivity.class);
+                // Passes the dive to the data activity by its id.
+                intent.putExtra(DataActivity.EXTRA_DIVE_ID, DiveRepository.getInstance().put(dive));
+                if(submarine != null) {
+                    submarine.removeConnectionStatusReceiver(TAG);
+                    submarine.disconnect();
+                    submarine = null;
+                }
+                startActivity(intent);
+            }
+        });
     }
 
     public void getData(View view) {
         if(this.submarine != null) {
             findViewById(R.id.data_progress_bar).setVisibility(View.VISIBLE);
             findViewById(R.id.data_button).setVisibility(View.INVISIBLE);
-            this.submarine.registerMessageReceiver(TAG, this);
             this.submarine.registerConnectionStatusReceiver(TAG, this);
             this.submarine.connect();
         }
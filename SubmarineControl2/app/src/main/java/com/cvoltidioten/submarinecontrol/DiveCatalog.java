@@ -0,0 +1,269 @@
+package com.cvoltidioten.submarinecontrol;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A catalog of the stored dives for listing them without touching their samples. It holds one
+ * fixed-width row per dive with its header and summary values, which are updated as samples are
+ * appended. The rows are read through a read-only mapping of the catalog file, so a list shows a
+ * page of rows by reading just these rows, and sorting only reads the column sorted by.
+ * Changed by the DiveStore on its thread only, but read from any thread.
+ */
+final class DiveCatalog implements Closeable {
+    // The id, starting time, depth, offset, amount of samples, maximum depth and minimum
+    // temperature of a dive, followed by four reserved bytes.
+    static final int ROW_SIZE = 8 + 8 + 4 + 4 + 4 + 4 + 4 + 4;
+    private static final int ID = 0;
+    private static final int STARTING_TIME = 8;
+    private static final int DEPTH = 16;
+    private static final int OFFSET = 20;
+    private static final int SAMPLE_COUNT = 24;
+    private static final int MAX_DEPTH = 28;
+    private static final int MIN_TEMPERATURE = 32;
+
+    /**
+     * The summary of a dive as held by the catalog.
+     */
+    static final class Summary {
+        private final long id;
+        private final Date startingTime;
+        private final int depthM;
+        private final int offsetS;
+        private final int sampleCount;
+        private final float maxDepth;
+        private final float minTemperature;
+
+        private Summary(long id, Date startingTime, int depthM, int offsetS, int sampleCount, float maxDepth, float minTemperature) {
+            this.id = id;
+            this.startingTime = startingTime;
+            this.depthM = depthM;
+            this.offsetS = offsetS;
+            this.sampleCount = sampleCount;
+            this.maxDepth = maxDepth;
+            this.minTemperature = minTemperature;
+        }
+
+        long getId() {
+            return id;
+        }
+
+        Date getStartingTime() {
+            return startingTime;
+        }
+
+        int getDepthM() {
+            return depthM;
+        }
+
+        int getOffsetS() {
+            return offsetS;
+        }
+
+        int getSampleCount() {
+            return sampleCount;
+        }
+
+        /**
+         * Returns the maximum depth measured, NaN if there are no samples.
+         * @return The maximum depth in meters.
+         */
+        float getMaxDepth() {
+            return maxDepth;
+        }
+
+        /**
+         * Returns the minimum temperature measured, NaN if there are no samples.
+         * @return The minimum temperature in degrees Celsius.
+         */
+        float getMinTemperature() {
+            return minTemperature;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    // The row of each dive by its id. Only used on the thread of the store.
+    private final Map<Long, Integer> rows = new HashMap<>();
+    // Used to write a row.
+    private final ByteBuffer row = ByteBuffer.allocate(ROW_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    // The mapping of the catalog, replaced by a larger one when a row is added.
+    private volatile MappedByteBuffer mapping;
+    // The amount of rows.
+    private volatile int size;
+
+    /**
+     * Opens the catalog in the given file, creating it if necessary. A partly written last row
+     * is dropped.
+     * @param file The file of the catalog.
+     * @throws IOException In case the file could not be opened.
+     */
+    DiveCatalog(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+        int size = (int)(this.channel.size() / ROW_SIZE);
+        this.channel.truncate((long)size * ROW_SIZE);
+        remap(size);
+        for(int i = 0; i < size; i++) {
+            this.rows.put(this.mapping.getLong(i * ROW_SIZE + ID), i);
+        }
+        this.size = size;
+    }
+
+    /**
+     * Returns the amount of dives in the catalog.
+     * @return The amount of dives.
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns the summary in the given row.
+     * @param index The index of the row.
+     * @return The summary.
+     */
+    Summary get(int index) {
+        ByteBuffer mapping = checkRow(index);
+        int position = index * ROW_SIZE;
+        return new Summary(mapping.getLong(position + ID), new Date(mapping.getLong(position + STARTING_TIME)),
+                mapping.getInt(position + DEPTH), mapping.getInt(position + OFFSET),
+                mapping.getInt(position + SAMPLE_COUNT), mapping.getFloat(position + MAX_DEPTH),
+                mapping.getFloat(position + MIN_TEMPERATURE));
+    }
+
+    /**
+     * Returns the rows ordered by the starting time of their dives, newest first. Only the
+     * starting times are read.
+     * @return The indices of the rows in order.
+     */
+    int[] sortByStartingTime() {
+        int size = this.size;
+        ByteBuffer mapping = this.mapping;
+        // Sorts the starting times together with the row indices by packing both into a long.
+        // The rows are the low bits, such that rows of equal times stay in order.
+        long[] keys = new long[size];
+        int rowBits = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1));
+        for(int i = 0; i < size; i++) {
+            long startingTime = mapping.getLong(i * ROW_SIZE + STARTING_TIME);
+            keys[i] = (startingTime << rowBits) | i;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[size];
+        long rowMask = (1L << rowBits) - 1;
+        for(int i = 0; i < size; i++) {
+            order[i] = (int)(keys[size - 1 - i] & rowMask);
+        }
+        return order;
+    }
+
+    /**
+     * Returns the amount of samples the catalog holds for the given dive.
+     * @param id The id of the dive.
+     * @return The amount of samples, -1 if the dive is not in the catalog.
+     */
+    int getSampleCount(long id) {
+        Integer index = this.rows.get(id);
+        return index == null ? -1 : this.mapping.getInt(index * ROW_SIZE + SAMPLE_COUNT);
+    }
+
+    /**
+     * Adds a row for the given dive, replacing the row of a dive with the same id.
+     * @param dive The dive to add.
+     * @throws IOException In case the row could not be written.
+     */
+    void put(Dive dive) throws IOException {
+        Integer index = this.rows.get(dive.getId());
+        if(index == null) {
+            index = this.size;
+        }
+        this.row.clear();
+        this.row.putLong(dive.getId());
+        this.row.putLong(dive.getStartingTime().getTime());
+        this.row.putInt(dive.getDepthM());
+        this.row.putInt(dive.getOffsetS());
+        this.row.putInt(0);
+        this.row.putFloat(Float.NaN);
+        this.row.putFloat(Float.NaN);
+        this.row.putInt(0);
+        this.row.flip();
+        write(index, 0);
+        if(index == this.size) {
+            this.rows.put(dive.getId(), index);
+            remap(index + 1);
+            this.size = index + 1;
+        }
+    }
+
+    /**
+     * Adds the given samples of a dive to the summary of the dive.
+     * @param id The id of the dive.
+     * @param samples The samples appended to the dive.
+     * @throws IOException In case the row could not be written.
+     */
+    void addSamples(long id, DiveSamples samples) throws IOException {
+        Integer index = this.rows.get(id);
+        if(index == null || samples.size() == 0) {
+            return;
+        }
+        int position = index * ROW_SIZE;
+        int sampleCount = this.mapping.getInt(position + SAMPLE_COUNT);
+        float maxDepth = this.mapping.getFloat(position + MAX_DEPTH);
+        float minTemperature = this.mapping.getFloat(position + MIN_TEMPERATURE);
+        for(int i = 0; i < samples.size(); i++) {
+            float depth = samples.getDepth(i);
+            float temperature = samples.getTemperature(i);
+            // Comparisons with NaN are false, so the first sample always replaces it.
+            if(!(depth <= maxDepth)) {
+                maxDepth = depth;
+            }
+            if(!(temperature >= minTemperature)) {
+                minTemperature = temperature;
+            }
+        }
+        this.row.clear();
+        this.row.putInt(sampleCount + samples.size());
+        this.row.putFloat(maxDepth);
+        this.row.putFloat(minTemperature);
+        this.row.flip();
+        write(index, SAMPLE_COUNT);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.file.close();
+    }
+
+    private void write(int index, int column) throws IOException {
+        long position = (long)index * ROW_SIZE + column;
+        while(this.row.hasRemaining()) {
+            position += this.channel.write(this.row, position);
+        }
+    }
+
+    /**
+     * Maps the given amount of rows, which have to be written already.
+     * @param rows The amount of rows to map.
+     * @throws IOException In case the file could not be mapped.
+     */
+    private void remap(int rows) throws IOException {
+        this.mapping = (MappedByteBuffer)this.channel.map(FileChannel.MapMode.READ_ONLY, 0, (long)rows * ROW_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private ByteBuffer checkRow(int index) {
+        if(index < 0 || index >= this.size) {
+            throw new IndexOutOfBoundsException("Row " + index + ", size " + this.size);
+        }
+        return this.mapping;
+    }
+}
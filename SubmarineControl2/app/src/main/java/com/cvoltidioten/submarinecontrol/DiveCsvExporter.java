@@ -0,0 +1,86 @@
+package com.cvoltidioten.submarinecontrol;
+
+import com.opencsv.CSVWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writes dives to CSV, one row per sample with all channels. The rows are streamed from the
+ * samples of the dives into the writer chunk by chunk, so only a single row is held as strings.
+ * Between chunks, the progress is reported and the export may be cancelled.
+ */
+final class DiveCsvExporter {
+    // The amount of rows written between progress reports.
+    static final int CHUNK_SIZE = 1024;
+    static final String[] HEADER = new String[]{"dive", "timestamp", "depth", "temperature", "pressure"};
+
+    /**
+     * Is informed about the progress of an export and decides whether to continue it.
+     */
+    interface Progress {
+        /**
+         * Is called after each chunk of rows.
+         * @param exported The amount of samples written so far.
+         * @param total The amount of samples of all dives.
+         */
+        void onProgress(int exported, int total);
+
+        /**
+         * Returns whether the export should stop.
+         * @return True to stop the export.
+         */
+        boolean isCancelled();
+    }
+
+    private DiveCsvExporter() {
+    }
+
+    /**
+     * Writes the given dives into one CSV and closes the writer.
+     * @param writer The writer to write to.
+     * @param dives The dives to write, in order.
+     * @param progress Is informed about the progress, may be null.
+     * @return True if all dives were written, false if the export was cancelled.
+     * @throws IOException In case writing failed.
+     */
+    static boolean export(Writer writer, List<Dive> dives, Progress progress) throws IOException {
+        int total = 0;
+        for(Dive dive : dives) {
+            total += dive.getSamples().size();
+        }
+        CSVWriter csv = new CSVWriter(new BufferedWriter(writer));
+        try {
+            csv.writeNext(HEADER);
+            int exported = 0;
+            // Reused for every row, as the writer does not keep it.
+            String[] row = new String[HEADER.length];
+            for(Dive dive : dives) {
+                DiveSamples samples = dive.getSamples();
+                row[0] = Long.toString(dive.getId());
+                for(int start = 0; start < samples.size(); start += CHUNK_SIZE) {
+                    if(progress != null && progress.isCancelled()) {
+                        return false;
+                    }
+                    int end = Math.min(start + CHUNK_SIZE, samples.size());
+                    for(int i = start; i < end; i++) {
+                        row[1] = Long.toString(samples.getTimestamp(i));
+                        row[2] = Float.toString(samples.getDepth(i));
+                        row[3] = Float.toString(samples.getTemperature(i));
+                        row[4] = Float.toString(samples.getPressure(i));
+                        csv.writeNext(row);
+                    }
+                    exported += end - start;
+                    if(progress != null) {
+                        progress.onProgress(exported, total);
+                    }
+                }
+            }
+            return true;
+        } finally {
+            csv.close();
+        }
+    }
+}
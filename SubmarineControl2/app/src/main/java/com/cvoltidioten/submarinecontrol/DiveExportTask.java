@@ -0,0 +1,162 @@
+package com.cvoltidioten.submarinecontrol;
+
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Exports dives to a CSV file in the background, showing the progress in a dialog which allows
+ * to cancel the export. A cancelled or failed export leaves no file behind. A single dive is also
+ * written to a compact dive file next to the CSV. The activity which started the export has to
+ * detach the task when it is destroyed, such that the running export does not keep it alive.
+ */
+class DiveExportTask extends AsyncTask<Void, Integer, Boolean> implements DiveCsvExporter.Progress {
+    private final static String TAG = "DiveExportTask";
+
+    /**
+     * Is informed when the export finished successfully.
+     */
+    interface Listener {
+        void onExported(File file);
+    }
+
+    private final List<Dive> dives;
+    private final File file;
+    // The dive file written next to the CSV file, null if more than one dive is exported.
+    private final File diveFile;
+    // The listener and the dialog refer to the activity, so both are dropped when detached.
+    private Listener listener;
+    private ProgressDialog dialog;
+
+    /**
+     * Creates the task.
+     * @param context The context to show the progress in.
+     * @param dives The dives to export into one file.
+     * @param file The CSV file to write.
+     * @param listener Is informed when the export finished, may be null.
+     */
+    DiveExportTask(Context context, List<Dive> dives, File file, Listener listener) {
+        this.dives = dives;
+        this.file = file;
+        this.diveFile = dives.size() == 1 ? new File(file.getParentFile(), file.getName().replaceFirst("\\.csv$", "") + ".dive") : null;
+        this.listener = listener;
+        this.dialog = new ProgressDialog(context);
+        this.dialog.setTitle(R.string.exporting);
+        this.dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        this.dialog.setCancelable(false);
+        this.dialog.setButton(DialogInterface.BUTTON_NEGATIVE, context.getString(R.string.cancel), new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                cancel(false);
+            }
+        });
+    }
+
+    /**
+     * Detaches the task from the activity it was created in. The dialog is dismissed and the
+     * listener is not informed anymore, while the export itself continues. Must be called on the
+     * UI thread.
+     */
+    void detach() {
+        if(this.dialog != null) {
+            this.dialog.dismiss();
+            this.dialog = null;
+        }
+        this.listener = null;
+    }
+
+    @Override
+    protected void onPreExecute() {
+        int total = 0;
+        for(Dive dive : this.dives) {
+            total += dive.getSamples().size();
+        }
+        this.dialog.setMax(total);
+        this.dialog.show();
+    }
+
+    @Override
+    protected Boolean doInBackground(Void... params) {
+        try {
+            if(!DiveCsvExporter.export(new FileWriter(this.file), this.dives, this)) {
+                return false;
+            }
+            return this.diveFile == null || writeDiveFile();
+        } catch(IOException e) {
+            Log.e(TAG, "Error on writing " + this.file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the single dive to the dive file, checking for cancellation after every block.
+     * @return Whether the dive file was written completely.
+     * @throws IOException In case writing failed.
+     */
+    private boolean writeDiveFile() throws IOException {
+        Dive dive = this.dives.get(0);
+        DiveSamples samples = dive.getSamples();
+        DiveFileWriter writer = new DiveFileWriter(new FileOutputStream(this.diveFile), dive);
+        try {
+            for(int i = 0; i < samples.size(); i++) {
+                if(i % DiveFileWriter.BLOCK_SIZE == 0 && isCancelled()) {
+                    return false;
+                }
+                writer.add((int)samples.getTimestamp(i), samples.getDepth(i), samples.getTemperature(i), samples.getPressure(i));
+            }
+        } finally {
+            writer.close();
+        }
+        return !isCancelled();
+    }
+
+    @Override
+    public void onProgress(int exported, int total) {
+        publishProgress(exported);
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... values) {
+        if(this.dialog != null) {
+            this.dialog.setProgress(values[values.length - 1]);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(Boolean exported) {
+        Listener listener = this.listener;
+        detach();
+        if(!exported) {
+            deleteFiles();
+        } else if(listener != null) {
+            listener.onExported(this.file);
+        }
+    }
+
+    @Override
+    protected void onCancelled(Boolean exported) {
+        detach();
+        deleteFiles();
+    }
+
+    private void deleteFiles() {
+        deleteFile(this.file);
+        if(this.diveFile != null) {
+            deleteFile(this.diveFile);
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if(file.exists() && !file.delete()) {
+            Log.w(TAG, "Could not delete " + file);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.cvoltidioten.submarinecontrol;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Reads a file written by DiveFileWriter. Opening the file only reads its header and block index;
+ * the samples are decoded block by block on access. The samples are accessible as DiveSamples,
+ * keeping the last block decoded. Not safe for use by several threads at once.
+ */
+final class DiveFileReader implements DiveSamples, Closeable {
+    private final RandomAccessFile file;
+    private final long id;
+    private final int depthM;
+    private final int offsetS;
+    private final long startingTime;
+    // The offset of each block in the file.
+    private final long[] blockOffsets;
+    // The index of the first sample of each block.
+    private final int[] blockStarts;
+    private final int size;
+    // The block decoded last and its index, -1 if none was decoded yet.
+    private SampleColumns block;
+    private int blockIndex = -1;
+    // The buffer the columns of a block are read into.
+    private byte[] columnBuffer = new byte[256];
+
+    /**
+     * Opens the given dive file.
+     * @param file The file to read.
+     * @throws IOException In case the file could not be read or is no dive file.
+     */
+    DiveFileReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        try {
+            if(this.file.length() < DiveFileWriter.HEADER_SIZE + DiveFileWriter.FOOTER_SIZE) {
+                throw new IOException("Not a dive file: " + file);
+            }
+            int magic = this.file.readInt();
+            int version = this.file.readByte();
+            if(magic != DiveFileWriter.MAGIC || version != DiveFileWriter.VERSION) {
+                throw new IOException("Not a dive file of version " + DiveFileWriter.VERSION + ": " + file);
+            }
+            this.id = this.file.readLong();
+            this.depthM = this.file.readInt();
+            this.offsetS = this.file.readInt();
+            this.startingTime = this.file.readLong();
+            this.file.seek(this.file.length() - DiveFileWriter.FOOTER_SIZE);
+            long indexOffset = this.file.readLong();
+            if(this.file.readInt() != DiveFileWriter.MAGIC) {
+                throw new IOException("Dive file is incomplete: " + file);
+            }
+            this.file.seek(indexOffset);
+            int blocks = this.file.readInt();
+            this.blockOffsets = new long[blocks];
+            this.blockStarts = new int[blocks];
+            int size = 0;
+            for(int i = 0; i < blocks; i++) {
+                this.blockOffsets[i] = this.file.readLong();
+                this.blockStarts[i] = size;
+                size += this.file.readInt();
+            }
+            this.size = size;
+        } catch(IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the whole dive in the given file onto the heap.
+     * @param file The file to read.
+     * @return The dive.
+     * @throws IOException In case the file could not be read.
+     */
+    static Dive read(File file) throws IOException {
+        DiveFileReader reader = new DiveFileReader(file);
+        try {
+            SampleColumns samples = new SampleColumns(reader.size());
+            for(int i = 0; i < reader.getBlockCount(); i++) {
+                samples.addAll(reader.readBlock(i));
+            }
+            return new Dive(reader.id, reader.depthM, reader.offsetS, new Date(reader.startingTime), samples);
+        } finally {
+            reader.close();
+        }
+    }
+
+    long getId() {
+        return id;
+    }
+
+    int getDepthM() {
+        return depthM;
+    }
+
+    int getOffsetS() {
+        return offsetS;
+    }
+
+    Date getStartingTime() {
+        return new Date(startingTime);
+    }
+
+    int getBlockCount() {
+        return this.blockOffsets.length;
+    }
+
+    /**
+     * Reads and decodes the block with the given index.
+     * @param index The index of the block.
+     * @return The samples of the block.
+     * @throws IOException In case the block could not be read.
+     */
+    SampleColumns readBlock(int index) throws IOException {
+        this.file.seek(this.blockOffsets[index]);
+        int count = this.file.readInt();
+        SampleColumns samples = new SampleColumns(count);
+        int[] timestamps = new int[count];
+        float[][] channels = new float[3][count];
+        decodeTimestamps(readColumn(), count, timestamps);
+        for(int channel = 0; channel < 3; channel++) {
+            decodeFloats(readColumn(), count, channels[channel]);
+        }
+        for(int i = 0; i < count; i++) {
+            samples.add(timestamps[i], channels[0][i], channels[1][i], channels[2][i]);
+        }
+        return samples;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public long getTimestamp(int index) {
+        return sampleBlock(index).getTimestamp(index - this.blockStarts[this.blockIndex]);
+    }
+
+    @Override
+    public float getDepth(int index) {
+        return sampleBlock(index).getDepth(index - this.blockStarts[this.blockIndex]);
+    }
+
+    @Override
+    public float getTemperature(int index) {
+        return sampleBlock(index).getTemperature(index - this.blockStarts[this.blockIndex]);
+    }
+
+    @Override
+    public float getPressure(int index) {
+        return sampleBlock(index).getPressure(index - this.blockStarts[this.blockIndex]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.file.close();
+    }
+
+    /**
+     * Returns the decoded block holding the sample with the given index, decoding it if needed.
+     * @param index The index of the sample.
+     * @return The block.
+     * @throws IllegalStateException In case the block could not be read.
+     */
+    private SampleColumns sampleBlock(int index) {
+        if(index < 0 || index >= this.size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + this.size);
+        }
+        int blockIndex = Arrays.binarySearch(this.blockStarts, index);
+        if(blockIndex < 0) {
+            blockIndex = -blockIndex - 2;
+        }
+        if(blockIndex != this.blockIndex) {
+            try {
+                this.block = readBlock(blockIndex);
+            } catch(IOException e) {
+                throw new IllegalStateException("Unable to read block " + blockIndex, e);
+            }
+            this.blockIndex = blockIndex;
+        }
+        return this.block;
+    }
+
+    private BitReader readColumn() throws IOException {
+        int length = this.file.readInt();
+        if(length > this.columnBuffer.length) {
+            this.columnBuffer = new byte[length];
+        }
+        this.file.readFully(this.columnBuffer, 0, length);
+        return new BitReader(this.columnBuffer, 0, length);
+    }
+
+    /**
+     * Decodes timestamps encoded by DiveFileWriter.encodeTimestamps().
+     * @param bits The encoded timestamps.
+     * @param count The amount of timestamps.
+     * @param timestamps The array to decode into.
+     */
+    static void decodeTimestamps(BitReader bits, int count, int[] timestamps) {
+        long previous = bits.read(32);
+        long previousDelta = 0;
+        timestamps[0] = (int)previous;
+        for(int i = 1; i < count; i++) {
+            long deltaOfDelta;
+            if(!bits.readBit()) {
+                deltaOfDelta = 0;
+            } else if(!bits.readBit()) {
+                deltaOfDelta = bits.readSigned(7);
+            } else if(!bits.readBit()) {
+                deltaOfDelta = bits.readSigned(9);
+            } else if(!bits.readBit()) {
+                deltaOfDelta = bits.readSigned(12);
+            } else {
+                deltaOfDelta = (bits.read(32) << 32) | bits.read(32);
+            }
+            long delta = previousDelta + deltaOfDelta;
+            long timestamp = previous + delta;
+            timestamps[i] = (int)timestamp;
+            previous = timestamp;
+            previousDelta = delta;
+        }
+    }
+
+    /**
+     * Decodes a float channel encoded by DiveFileWriter.encodeFloats().
+     * @param bits The encoded values.
+     * @param count The amount of values.
+     * @param values The array to decode into.
+     */
+    static void decodeFloats(BitReader bits, int count, float[] values) {
+        int previous = (int)bits.read(32);
+        int leading = 0;
+        int trailing = 0;
+        values[0] = Float.intBitsToFloat(previous);
+        for(int i = 1; i < count; i++) {
+            if(bits.readBit()) {
+                if(bits.readBit()) {
+                    leading = (int)bits.read(5);
+                    int meaningful = (int)bits.read(5) + 1;
+                    trailing = 32 - leading - meaningful;
+                }
+                int xor = (int)bits.read(32 - leading - trailing) << trailing;
+                previous ^= xor;
+            }
+            values[i] = Float.intBitsToFloat(previous);
+        }
+    }
+}
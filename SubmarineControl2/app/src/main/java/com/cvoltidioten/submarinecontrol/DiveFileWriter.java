@@ -0,0 +1,238 @@
+package com.cvoltidioten.submarinecontrol;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes a dive in the compact dive file format, sample by sample. The file consists of
+ * <ul>
+ *     <li>a header: magic, version, id, depth, offset and starting time of the dive,</li>
+ *     <li>blocks of up to BLOCK_SIZE samples, each holding its amount of samples followed by the
+ *     timestamp, depth, temperature and pressure column, each as its length in bytes and its
+ *     bits,</li>
+ *     <li>the block index: the amount of blocks, then the offset and amount of samples of each,</li>
+ *     <li>a footer: the offset of the block index and the magic.</li>
+ * </ul>
+ * The timestamps are encoded as the differences of their differences, which are zero for
+ * samples taken at a fixed rate. The other channels are encoded as the XOR of each value with
+ * the previous one, which has few meaningful bits for slowly changing values. This is the
+ * compression of the Gorilla time series database. Use DiveFileReader to read the file.
+ */
+final class DiveFileWriter implements Closeable {
+    static final int MAGIC = 0x44495645;
+    static final int VERSION = 1;
+    // The amount of samples per block, which is the unit of random access.
+    static final int BLOCK_SIZE = 1024;
+    // The size of the header in bytes.
+    static final int HEADER_SIZE = 4 + 1 + 8 + 4 + 4 + 8;
+    // The size of the footer in bytes.
+    static final int FOOTER_SIZE = 8 + 4;
+
+    private final DataOutputStream out;
+    // The samples of the current block.
+    private final SampleColumns block = new SampleColumns(BLOCK_SIZE);
+    private final BitWriter bits = new BitWriter();
+    // The offsets and sizes of the blocks written.
+    private long[] blockOffsets = new long[16];
+    private int[] blockCounts = new int[16];
+    private int blocks = 0;
+    private boolean closed = false;
+
+    /**
+     * Starts a dive file with the header of the given dive. Its samples are not written.
+     * @param out The stream to write to, closed when this writer is closed.
+     * @param dive The dive whose header to write.
+     * @throws IOException In case writing failed.
+     */
+    DiveFileWriter(OutputStream out, Dive dive) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+        this.out.writeLong(dive.getId());
+        this.out.writeInt(dive.getDepthM());
+        this.out.writeInt(dive.getOffsetS());
+        this.out.writeLong(dive.getStartingTime().getTime());
+    }
+
+    /**
+     * Writes a whole dive to the given stream and closes it.
+     * @param out The stream to write to.
+     * @param dive The dive to write.
+     * @throws IOException In case writing failed.
+     */
+    static void write(OutputStream out, Dive dive) throws IOException {
+        DiveFileWriter writer = new DiveFileWriter(out, dive);
+        try {
+            writer.addAll(dive.getSamples());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Adds a sample. Samples are written block by block.
+     * @param timestamp The unsigned timestamp of the sample.
+     * @param depth The depth in meters.
+     * @param temperature The temperature in degrees Celsius.
+     * @param pressure The pressure in bar.
+     * @throws IOException In case writing failed.
+     */
+    void add(int timestamp, float depth, float temperature, float pressure) throws IOException {
+        this.block.add(timestamp, depth, temperature, pressure);
+        if(this.block.size() == BLOCK_SIZE) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Adds the given samples.
+     * @param samples The samples to add.
+     * @throws IOException In case writing failed.
+     */
+    void addAll(DiveSamples samples) throws IOException {
+        for(int i = 0; i < samples.size(); i++) {
+            add((int)samples.getTimestamp(i), samples.getDepth(i), samples.getTemperature(i), samples.getPressure(i));
+        }
+    }
+
+    /**
+     * Writes the remaining samples, the block index and the footer, and closes the stream.
+     * @throws IOException In case writing failed.
+     */
+    @Override
+    public void close() throws IOException {
+        if(this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            if(this.block.size() > 0) {
+                writeBlock();
+            }
+            long indexOffset = this.out.size();
+            this.out.writeInt(this.blocks);
+            for(int i = 0; i < this.blocks; i++) {
+                this.out.writeLong(this.blockOffsets[i]);
+                this.out.writeInt(this.blockCounts[i]);
+            }
+            this.out.writeLong(indexOffset);
+            this.out.writeInt(MAGIC);
+        } finally {
+            this.out.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if(this.blocks == this.blockOffsets.length) {
+            this.blockOffsets = Arrays.copyOf(this.blockOffsets, this.blocks * 2);
+            this.blockCounts = Arrays.copyOf(this.blockCounts, this.blocks * 2);
+        }
+        this.blockOffsets[this.blocks] = this.out.size();
+        this.blockCounts[this.blocks] = this.block.size();
+        this.blocks++;
+        this.out.writeInt(this.block.size());
+        encodeTimestamps(this.block, this.bits);
+        writeColumn();
+        for(int channel = 1; channel <= 3; channel++) {
+            encodeFloats(this.block, channel, this.bits);
+            writeColumn();
+        }
+        this.block.clear();
+    }
+
+    private void writeColumn() throws IOException {
+        this.out.writeInt(this.bits.byteLength());
+        this.bits.writeTo(this.out);
+        this.bits.reset();
+    }
+
+    /**
+     * Encodes the timestamps of the given samples: the first one as it is, then the difference of
+     * each difference to the previous difference in a variable amount of bits.
+     * @param samples The samples whose timestamps to encode.
+     * @param bits The writer to encode into.
+     */
+    static void encodeTimestamps(DiveSamples samples, BitWriter bits) {
+        long previous = samples.getTimestamp(0);
+        long previousDelta = 0;
+        bits.write(previous, 32);
+        for(int i = 1; i < samples.size(); i++) {
+            long timestamp = samples.getTimestamp(i);
+            long delta = timestamp - previous;
+            long deltaOfDelta = delta - previousDelta;
+            if(deltaOfDelta == 0) {
+                bits.write(0, 1);
+            } else if(deltaOfDelta >= -64 && deltaOfDelta < 64) {
+                bits.write(0x2, 2);
+                bits.write(deltaOfDelta, 7);
+            } else if(deltaOfDelta >= -256 && deltaOfDelta < 256) {
+                bits.write(0x6, 3);
+                bits.write(deltaOfDelta, 9);
+            } else if(deltaOfDelta >= -2048 && deltaOfDelta < 2048) {
+                bits.write(0xE, 4);
+                bits.write(deltaOfDelta, 12);
+            } else {
+                // Two timestamps are 32 bits, so their second difference takes up to 34 bits.
+                bits.write(0xF, 4);
+                bits.write(deltaOfDelta >> 32, 32);
+                bits.write(deltaOfDelta, 32);
+            }
+            previous = timestamp;
+            previousDelta = delta;
+        }
+    }
+
+    /**
+     * Encodes a float channel of the given samples: the first value as it is, then the XOR of each
+     * value with the previous one. An XOR of zero takes one bit. Otherwise, only its meaningful
+     * bits are written, reusing the position of the meaningful bits of the previous XOR if they
+     * fit in there.
+     * @param samples The samples whose channel to encode.
+     * @param channel 1 for the depth, 2 for the temperature, 3 for the pressure.
+     * @param bits The writer to encode into.
+     */
+    static void encodeFloats(DiveSamples samples, int channel, BitWriter bits) {
+        int previous = Float.floatToRawIntBits(value(samples, channel, 0));
+        int previousLeading = 33;
+        int previousTrailing = 0;
+        bits.write(previous, 32);
+        for(int i = 1; i < samples.size(); i++) {
+            int value = Float.floatToRawIntBits(value(samples, channel, i));
+            int xor = value ^ previous;
+            if(xor == 0) {
+                bits.write(0, 1);
+            } else {
+                int leading = Math.min(Integer.numberOfLeadingZeros(xor), 31);
+                int trailing = Integer.numberOfTrailingZeros(xor);
+                if(leading >= previousLeading && trailing >= previousTrailing) {
+                    bits.write(0x2, 2);
+                    bits.write(xor >>> previousTrailing, 32 - previousLeading - previousTrailing);
+                } else {
+                    int meaningful = 32 - leading - trailing;
+                    bits.write(0x3, 2);
+                    bits.write(leading, 5);
+                    bits.write(meaningful - 1, 5);
+                    bits.write(xor >>> trailing, meaningful);
+                    previousLeading = leading;
+                    previousTrailing = trailing;
+                }
+            }
+            previous = value;
+        }
+    }
+
+    private static float value(DiveSamples samples, int channel, int index) {
+        switch(channel) {
+            case 1:
+                return samples.getDepth(index);
+            case 2:
+                return samples.getTemperature(index);
+            default:
+                return samples.getPressure(index);
+        }
+    }
+}
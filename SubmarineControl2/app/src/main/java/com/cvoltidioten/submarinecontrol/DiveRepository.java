@@ -0,0 +1,131 @@
+package com.cvoltidioten.submarinecontrol;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Holds the dives of the process by their id, such that activities hand over just the id of a
+ * dive instead of copying the dive through an Intent. Activities acquire a dive while they show it
+ * and release it afterwards. Dives taken from the repository are shared and must not be changed.
+ * When the samples held exceed the memory budget, the least recently used dives which are not
+ * acquired are dropped. The most recently used dive is always kept, such that a dive handed to an
+ * activity is still there when the activity acquires it.
+ */
+final class DiveRepository {
+    private static final DiveRepository INSTANCE = new DiveRepository(Runtime.getRuntime().maxMemory() / 8);
+
+    private static class Entry {
+        private final Dive dive;
+        // The amount of holders which acquired the dive and did not release it yet.
+        private int references = 0;
+
+        private Entry(Dive dive) {
+            this.dive = dive;
+        }
+    }
+
+    // The amount of sample bytes to hold at most, as long as the dives are not in use.
+    private final long budgetBytes;
+    // The dives by their id, least recently put or acquired first. Releasing a dive does not count
+    // as use, as it must not push out a dive just handed over.
+    private final LinkedHashMap<Long, Entry> dives = new LinkedHashMap<>();
+
+    /**
+     * Creates an empty repository.
+     * @param budgetBytes The amount of sample bytes to hold at most.
+     */
+    DiveRepository(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Returns the repository shared by all activities. Its budget is an eighth of the heap.
+     * @return The repository.
+     */
+    static DiveRepository getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds the given dive, replacing a dive with the same id. The dive must not be changed
+     * afterwards.
+     * @param dive The dive to add.
+     * @return The id of the dive.
+     */
+    synchronized long put(Dive dive) {
+        Entry entry = new Entry(dive);
+        Entry previous = this.dives.remove(dive.getId());
+        this.dives.put(dive.getId(), entry);
+        if(previous != null) {
+            entry.references = previous.references;
+        }
+        trim();
+        return dive.getId();
+    }
+
+    /**
+     * Returns the dive with the given id and keeps it until it is released.
+     * @param id The id of the dive.
+     * @return The dive, or null if there is no dive with this id or it was dropped.
+     */
+    synchronized Dive acquire(long id) {
+        Entry entry = this.dives.remove(id);
+        if(entry == null) {
+            return null;
+        }
+        // Moves the dive to the end as the most recently used one.
+        this.dives.put(id, entry);
+        entry.references++;
+        return entry.dive;
+    }
+
+    /**
+     * Releases the dive with the given id, which may be dropped once no one holds it anymore.
+     * @param id The id of the dive acquired before.
+     */
+    synchronized void release(long id) {
+        Entry entry = this.dives.get(id);
+        if(entry == null || entry.references == 0) {
+            return;
+        }
+        entry.references--;
+        trim();
+    }
+
+    /**
+     * Returns whether the dive with the given id is held by the repository.
+     * @param id The id of the dive.
+     * @return True if the dive is held.
+     */
+    synchronized boolean contains(long id) {
+        return this.dives.containsKey(id);
+    }
+
+    /**
+     * Drops the least recently used dives which are not in use until the budget is kept or only
+     * dives in use and the most recently used dive are left.
+     */
+    private void trim() {
+        long size = 0;
+        for(Entry entry : this.dives.values()) {
+            size += sizeOf(entry.dive);
+        }
+        Iterator<Entry> iterator = this.dives.values().iterator();
+        // Stops before the most recently used dive, which is last.
+        for(int left = this.dives.size(); size > this.budgetBytes && left > 1; left--) {
+            Entry entry = iterator.next();
+            if(entry.references == 0) {
+                size -= sizeOf(entry.dive);
+                iterator.remove();
+            }
+        }
+    }
+
+    private static long sizeOf(Dive dive) {
+        // Samples mapped from the DiveStore are not on the heap.
+        if(!(dive.getSamples() instanceof SampleColumns)) {
+            return 0;
+        }
+        return (long)dive.getSamples().size() * SampleColumns.PACKED_SAMPLE_SIZE;
+    }
+}
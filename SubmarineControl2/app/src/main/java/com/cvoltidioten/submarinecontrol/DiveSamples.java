@@ -0,0 +1,41 @@
+package com.cvoltidioten.submarinecontrol;
+
+/**
+ * Read access to the samples of a dive, one column per channel. The samples are either held on
+ * the heap while they are downloaded or mapped from the DiveStore once they were stored.
+ */
+interface DiveSamples {
+    /**
+     * Returns the amount of samples.
+     * @return The amount of samples.
+     */
+    int size();
+
+    /**
+     * Returns the timestamp of the sample at the given index.
+     * @param index The index of the sample.
+     * @return The unsigned timestamp.
+     */
+    long getTimestamp(int index);
+
+    /**
+     * Returns the depth of the sample at the given index.
+     * @param index The index of the sample.
+     * @return The depth in meters.
+     */
+    float getDepth(int index);
+
+    /**
+     * Returns the temperature of the sample at the given index.
+     * @param index The index of the sample.
+     * @return The temperature in degrees Celsius.
+     */
+    float getTemperature(int index);
+
+    /**
+     * Returns the pressure of the sample at the given index.
+     * @param index The index of the sample.
+     * @return The pressure in bar.
+     */
+    float getPressure(int index);
+}
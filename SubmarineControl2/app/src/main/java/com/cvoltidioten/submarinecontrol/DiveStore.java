@@ -0,0 +1,638 @@
+package com.cvoltidioten.submarinecontrol;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps the dives on the internal storage, such that they outlive the process. The samples are
+ * appended to a segment file block by block as they are downloaded. A small index file records
+ * the dives and where their blocks are in the segment file. Both files are only ever appended to.
+ * The index is read completely when the store is opened. The samples of a stored dive are read
+ * through a read-only mapping of the segment file, so opening a dive neither parses the file nor
+ * loads the samples onto the heap.
+ * Opening the store reads and repairs its files, so the store of the app is opened in the
+ * background by open(), never on the UI thread.
+ * Writing is done on the own thread of the store, in the order the dives and samples were given.
+ * A failed write, also of the journal, is reported by the next call to sync().
+ * The ids of the stored dives are never handed out to new dives again, and a dive is only
+ * created once.
+ * The DiveCatalog of the store summarizes the stored dives for listing them.
+ * Downloads are journaled by the FrameJournal of the store until they are stored. A journal left
+ * by a killed app is replayed when the store is opened.
+ */
+final class DiveStore {
+    private static final String SEGMENT_FILE = "samples.seg";
+    private static final String INDEX_FILE = "index.dat";
+    private static final String JOURNAL_FILE = "frames.journal";
+    private static final String CATALOG_FILE = "catalog.idx";
+    // Index record of a dive, followed by its id, depth, offset and starting time.
+    private static final byte RECORD_DIVE = 1;
+    // Index record of a block of samples, followed by the dive id, the offset and the amount.
+    private static final byte RECORD_BLOCK = 2;
+    private static final int DIVE_RECORD_SIZE = 1 + 8 + 4 + 4 + 8;
+    private static final int BLOCK_RECORD_SIZE = 1 + 8 + 8 + 4;
+
+    private static DiveStore instance;
+    // Opens the store of the app, such that the caller never waits for the files to be read.
+    private static final ExecutorService OPENER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "DiveStoreOpener");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Should be implemented by any member that wants to be notified once the store of the app is
+     * open.
+     */
+    interface DiveStoreNotifyable {
+        void receiveStore(DiveStore store);
+
+        void receiveFailure(IOException failure);
+    }
+
+    /**
+     * The index entry of a stored dive. Only changed on the thread of the store while holding the
+     * lock of the store.
+     */
+    private static class Entry {
+        private final long id;
+        private final int depthM;
+        private final int offsetS;
+        private final long startingTime;
+        // The offsets of the blocks in the segment file.
+        private long[] offsets = new long[4];
+        // The amount of samples in each block.
+        private int[] counts = new int[4];
+        private int blocks = 0;
+
+        private Entry(long id, int depthM, int offsetS, long startingTime) {
+            this.id = id;
+            this.depthM = depthM;
+            this.offsetS = offsetS;
+            this.startingTime = startingTime;
+        }
+
+        private void addBlock(long offset, int count) {
+            if(this.blocks == this.offsets.length) {
+                this.offsets = Arrays.copyOf(this.offsets, this.blocks * 2);
+                this.counts = Arrays.copyOf(this.counts, this.blocks * 2);
+            }
+            this.offsets[this.blocks] = offset;
+            this.counts[this.blocks] = count;
+            this.blocks++;
+        }
+    }
+
+    /**
+     * The samples of a stored dive, read from mappings of its blocks.
+     */
+    private static class MappedSamples implements DiveSamples {
+        // The mapping holding each block, shared by blocks next to each other.
+        private final ByteBuffer[] buffers;
+        // The index of the first sample of each block.
+        private final int[] starts;
+        // The position of each block in its mapping.
+        private final int[] positions;
+        private final int[] counts;
+        private final int size;
+
+        private MappedSamples(ByteBuffer[] buffers, int[] starts, int[] positions, int[] counts, int size) {
+            this.buffers = buffers;
+            this.starts = starts;
+            this.positions = positions;
+            this.counts = counts;
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+
+        @Override
+        public long getTimestamp(int index) {
+            int block = block(index);
+            return this.buffers[block].getInt(position(block, index, 0)) & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public float getDepth(int index) {
+            int block = block(index);
+            return this.buffers[block].getFloat(position(block, index, 1));
+        }
+
+        @Override
+        public float getTemperature(int index) {
+            int block = block(index);
+            return this.buffers[block].getFloat(position(block, index, 2));
+        }
+
+        @Override
+        public float getPressure(int index) {
+            int block = block(index);
+            return this.buffers[block].getFloat(position(block, index, 3));
+        }
+
+        /**
+         * Returns the block holding the sample with the given index.
+         * @param index The index of the sample.
+         * @return The index of the block.
+         */
+        private int block(int index) {
+            if(index < 0 || index >= this.size) {
+                throw new IndexOutOfBoundsException("Index " + index + ", size " + this.size);
+            }
+            int block = Arrays.binarySearch(this.starts, index);
+            if(block < 0) {
+                block = -block - 2;
+            }
+            return block;
+        }
+
+        /**
+         * Returns the position of a value in the mapping of its block.
+         * @param block The index of the block.
+         * @param index The index of the sample.
+         * @param channel The channel of the value, in the order the channels are written.
+         * @return The position of the value.
+         */
+        private int position(int block, int index, int channel) {
+            return this.positions[block] + 4 * (channel * this.counts[block] + index - this.starts[block]);
+        }
+    }
+
+    private final File segmentFile;
+    private final File indexFile;
+    // The stored dives by their id, in the order they were created.
+    private final LinkedHashMap<Long, Entry> dives = new LinkedHashMap<>();
+    // Runs the writes one after another.
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "DiveStore");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    // The files appended to. Only used on the thread of the store.
+    private final FileChannel segment;
+    private final FileOutputStream indexFileStream;
+    private final DataOutputStream index;
+    // Journals the downloads until their samples are stored.
+    private final FrameJournal journal;
+    // Summarizes the stored dives, updated as they are written.
+    private final DiveCatalog catalog;
+    // The length of the segment file. Only used on the thread of the store.
+    private long segmentLength;
+    // The first write which failed, not reported yet.
+    private volatile IOException failure;
+    // The dives whose download was interrupted by a killed app, as found in the journal. Emptied
+    // once a download is complete.
+    private final List<Long> incompleteDiveIds = new ArrayList<>();
+
+    /**
+     * Opens the store in the given directory, creating it if necessary.
+     * @param directory The directory holding the files of the store.
+     * @throws IOException In case the files could not be read or opened, or the journal could not
+     * be replayed.
+     */
+    DiveStore(File directory) throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        this.segmentFile = new File(directory, SEGMENT_FILE);
+        this.indexFile = new File(directory, INDEX_FILE);
+        recover();
+        this.segment = new FileOutputStream(this.segmentFile, true).getChannel();
+        this.indexFileStream = new FileOutputStream(this.indexFile, true);
+        this.index = new DataOutputStream(new BufferedOutputStream(this.indexFileStream));
+        this.catalog = new DiveCatalog(new File(directory, CATALOG_FILE));
+        updateCatalog();
+        this.journal = new FrameJournal(new File(directory, JOURNAL_FILE));
+        try {
+            this.incompleteDiveIds.addAll(this.journal.replay(this));
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while replaying the journal");
+        }
+    }
+
+    /**
+     * Opens the store of the app in the background on first use, as this reads and repairs its
+     * files. Returns immediately. The receiver is notified on the thread opening the store once it
+     * is open, or right away on that thread if it is open already. If opening fails, the receiver
+     * is notified about the failure and the next call tries again.
+     * @param context Any context of the app.
+     * @param receiver The receiver to notify about the store.
+     */
+    static void open(Context context, final DiveStoreNotifyable receiver) {
+        final File directory = new File(context.getApplicationContext().getFilesDir(), "dives");
+        OPENER.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Only a single opener thread touches the instance, so it needs no locking.
+                if(instance == null) {
+                    try {
+                        instance = new DiveStore(directory);
+                    } catch(IOException e) {
+                        receiver.receiveFailure(e);
+                        return;
+                    }
+                }
+                receiver.receiveStore(instance);
+            }
+        });
+    }
+
+    /**
+     * Records the given dive, which has no samples yet. A dive with the id of a dive recorded
+     * before is rejected, which is reported by sync().
+     * @param dive The dive to record.
+     */
+    void create(final Dive dive) {
+        final long id = dive.getId();
+        final int depthM = dive.getDepthM();
+        final int offsetS = dive.getOffsetS();
+        final long startingTime = dive.getStartingTime().getTime();
+        Dive.skipIds(id);
+        write(new Write() {
+            @Override
+            public void run() throws IOException {
+                synchronized(DiveStore.this) {
+                    if(dives.containsKey(id)) {
+                        throw new IOException("Dive " + id + " is stored already");
+                    }
+                }
+                index.writeByte(RECORD_DIVE);
+                index.writeLong(id);
+                index.writeInt(depthM);
+                index.writeInt(offsetS);
+                index.writeLong(startingTime);
+                index.flush();
+                synchronized(DiveStore.this) {
+                    dives.put(id, new Entry(id, depthM, offsetS, startingTime));
+                }
+                catalog.put(dive);
+            }
+        });
+    }
+
+    /**
+     * Appends the samples of the given dive starting at the given index to the stored dive. The
+     * samples are copied right away, so the dive may change afterwards.
+     * @param dive The dive recorded by create() before.
+     * @param from The index of the first sample to append.
+     */
+    void append(Dive dive, int from) {
+        append(dive.getId(), SampleColumns.copyOf(dive.getSamples(), from, dive.getSamples().size()));
+    }
+
+    /**
+     * Appends the given samples to the stored dive with the given id.
+     * @param id The id of a dive recorded by create() before.
+     * @param samples The samples to append, which must not change afterwards.
+     */
+    void append(final long id, final SampleColumns samples) {
+        if(samples.size() == 0) {
+            return;
+        }
+        write(new Write() {
+            @Override
+            public void run() throws IOException {
+                long offset = segmentLength;
+                ByteBuffer block = ByteBuffer.allocate(samples.size() * SampleColumns.PACKED_SAMPLE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                samples.writeTo(block, 0, samples.size());
+                block.flip();
+                while(block.hasRemaining()) {
+                    segment.write(block);
+                }
+                // The samples have to be on the storage before the index points to them.
+                segment.force(false);
+                segmentLength += block.capacity();
+                index.writeByte(RECORD_BLOCK);
+                index.writeLong(id);
+                index.writeLong(offset);
+                index.writeInt(samples.size());
+                index.flush();
+                synchronized(DiveStore.this) {
+                    Entry entry = dives.get(id);
+                    if(entry != null) {
+                        entry.addBlock(offset, samples.size());
+                    }
+                }
+                catalog.addSamples(id, samples);
+            }
+        });
+    }
+
+    /**
+     * Returns the journal downloads to this store are journaled to.
+     * @return The journal.
+     */
+    FrameJournal getJournal() {
+        return this.journal;
+    }
+
+    /**
+     * Empties the journal once everything given to the store so far is on the storage. Called
+     * when a download is complete. No dive is incomplete from now on.
+     */
+    void checkpoint() {
+        synchronized(this) {
+            this.incompleteDiveIds.clear();
+        }
+        final long mark = this.journal.mark();
+        write(new Write() {
+            @Override
+            public void run() throws IOException {
+                // The blocks are forced already, the index records pointing to them are not.
+                indexFileStream.getFD().sync();
+                journal.truncate(mark);
+            }
+        });
+    }
+
+    /**
+     * Returns the ids of the dives whose download was interrupted when the app was killed. Their
+     * samples are stored up to the last frame received, and their download may be resumed.
+     * @return The ids of the dives, the one downloaded last at the end.
+     */
+    synchronized List<Long> getIncompleteDiveIds() {
+        return new ArrayList<>(this.incompleteDiveIds);
+    }
+
+    /**
+     * Returns the catalog of the stored dives.
+     * @return The catalog.
+     */
+    DiveCatalog getCatalog() {
+        return this.catalog;
+    }
+
+    /**
+     * Returns the ids of the stored dives, in the order they were created.
+     * @return The ids of the dives.
+     */
+    synchronized List<Long> getDiveIds() {
+        return new ArrayList<>(this.dives.keySet());
+    }
+
+    /**
+     * Returns the stored dive with the given id. The samples stored so far are mapped, not read.
+     * @param id The id of the dive.
+     * @return The dive, or null if there is no dive with this id.
+     * @throws IOException In case the samples could not be mapped.
+     */
+    Dive load(long id) throws IOException {
+        long[] offsets;
+        int[] counts;
+        int blocks;
+        Entry entry;
+        synchronized(this) {
+            entry = this.dives.get(id);
+            if(entry == null) {
+                return null;
+            }
+            blocks = entry.blocks;
+            offsets = Arrays.copyOf(entry.offsets, blocks);
+            counts = Arrays.copyOf(entry.counts, blocks);
+        }
+        Date startingTime = new Date(entry.startingTime);
+        if(blocks == 0) {
+            return new Dive(entry.id, entry.depthM, entry.offsetS, startingTime, new SampleColumns(0));
+        }
+        // Maps every run of blocks next to each other in the segment file, which usually is the
+        // whole dive. Blocks of other dives written in between are never mapped.
+        ByteBuffer[] buffers = new ByteBuffer[blocks];
+        int[] starts = new int[blocks];
+        int[] positions = new int[blocks];
+        int size = 0;
+        RandomAccessFile file = new RandomAccessFile(this.segmentFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            int first = 0;
+            while(first < blocks) {
+                long base = offsets[first];
+                long end = base + (long)counts[first] * SampleColumns.PACKED_SAMPLE_SIZE;
+                int last = first;
+                while(last + 1 < blocks && offsets[last + 1] == end
+                        && end + (long)counts[last + 1] * SampleColumns.PACKED_SAMPLE_SIZE - base <= Integer.MAX_VALUE) {
+                    last++;
+                    end += (long)counts[last] * SampleColumns.PACKED_SAMPLE_SIZE;
+                }
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, base, end - base).order(ByteOrder.LITTLE_ENDIAN);
+                for(int i = first; i <= last; i++) {
+                    buffers[i] = buffer;
+                    starts[i] = size;
+                    positions[i] = (int)(offsets[i] - base);
+                    size += counts[i];
+                }
+                first = last + 1;
+            }
+        } finally {
+            file.close();
+        }
+        return new Dive(entry.id, entry.depthM, entry.offsetS, startingTime, new MappedSamples(buffers, starts, positions, counts, size));
+    }
+
+    /**
+     * Returns the stored dive with the given id to download more samples into. Waits until the
+     * writes given before are done, such that a dive just created is found. The samples stored so
+     * far are copied onto the heap, as mapped samples cannot be appended to.
+     * @param id The id of the dive.
+     * @return The dive, or null if there is no dive with this id.
+     * @throws IOException In case the samples could not be read.
+     * @throws InterruptedException In case the thread was interrupted while waiting.
+     */
+    Dive resume(final long id) throws IOException, InterruptedException {
+        try {
+            return this.writer.submit(new Callable<Dive>() {
+                @Override
+                public Dive call() throws IOException {
+                    Dive stored = load(id);
+                    if(stored == null) {
+                        return null;
+                    }
+                    Dive dive = new Dive(stored.getId(), stored.getDepthM(), stored.getOffsetS(),
+                            stored.getStartingTime(), SampleColumns.copyOf(stored.getSamples()));
+                    dive.setComplete(false);
+                    return dive;
+                }
+            }).get();
+        } catch(ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Waits until everything given to the store and its journal so far is written.
+     * @throws IOException In case a write failed since the last call, or the journal failed since
+     * its last report.
+     * @throws InterruptedException In case the thread was interrupted while waiting.
+     */
+    void sync() throws IOException, InterruptedException {
+        try {
+            this.writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch(ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        IOException failure = this.failure;
+        if(failure != null) {
+            this.failure = null;
+            throw failure;
+        }
+        this.journal.sync();
+    }
+
+    /**
+     * Writes everything given so far and closes the files. The store must not be used afterwards.
+     * @throws IOException In case writing or closing failed.
+     * @throws InterruptedException In case the thread was interrupted while waiting.
+     */
+    void close() throws IOException, InterruptedException {
+        try {
+            sync();
+        } finally {
+            this.writer.shutdown();
+            this.segment.close();
+            this.index.close();
+            this.journal.close();
+            this.catalog.close();
+        }
+    }
+
+    /**
+     * A write done on the thread of the store.
+     */
+    private interface Write {
+        void run() throws IOException;
+    }
+
+    private void write(final Write write) {
+        this.writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write.run();
+                } catch(IOException e) {
+                    if(failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the index and drops what a crash left incomplete: a partly written index record and
+     * samples the index does not point to.
+     * @throws IOException In case the files could not be read.
+     */
+    private void recover() throws IOException {
+        long segmentLength = this.segmentFile.length();
+        long validIndexLength = 0;
+        long validSegmentLength = 0;
+        if(this.indexFile.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.indexFile)));
+            try {
+                while(true) {
+                    byte type = in.readByte();
+                    if(type == RECORD_DIVE) {
+                        long id = in.readLong();
+                        int depthM = in.readInt();
+                        int offsetS = in.readInt();
+                        long startingTime = in.readLong();
+                        this.dives.put(id, new Entry(id, depthM, offsetS, startingTime));
+                        Dive.skipIds(id);
+                        validIndexLength += DIVE_RECORD_SIZE;
+                    } else if(type == RECORD_BLOCK) {
+                        long id = in.readLong();
+                        long offset = in.readLong();
+                        int count = in.readInt();
+                        long end = offset + (long)count * SampleColumns.PACKED_SAMPLE_SIZE;
+                        if(end > segmentLength) {
+                            // The samples did not make it to the storage, nor did anything after.
+                            break;
+                        }
+                        Entry entry = this.dives.get(id);
+                        if(entry != null) {
+                            entry.addBlock(offset, count);
+                        }
+                        validIndexLength += BLOCK_RECORD_SIZE;
+                        validSegmentLength = Math.max(validSegmentLength, end);
+                    } else {
+                        break;
+                    }
+                }
+            } catch(EOFException e) {
+                // The last record was only partly written.
+            } finally {
+                in.close();
+            }
+        }
+        truncate(this.indexFile, validIndexLength);
+        truncate(this.segmentFile, validSegmentLength);
+        this.segmentLength = validSegmentLength;
+    }
+
+    /**
+     * Rebuilds the rows of the catalog which do not match the index, as the catalog is not forced
+     * onto the storage with the blocks. Only the samples of these dives are read.
+     * @throws IOException In case the samples could not be read or the catalog not be written.
+     */
+    private void updateCatalog() throws IOException {
+        for(Entry entry : this.dives.values()) {
+            int sampleCount = 0;
+            for(int i = 0; i < entry.blocks; i++) {
+                sampleCount += entry.counts[i];
+            }
+            if(this.catalog.getSampleCount(entry.id) != sampleCount) {
+                Dive dive = load(entry.id);
+                this.catalog.put(dive);
+                this.catalog.addSamples(entry.id, dive.getSamples());
+            }
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        if(file.exists() && file.length() > length) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(length);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package com.cvoltidioten.submarinecontrol;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal of the DATA frames received, such that a download survives the app being
+ * killed. Before a data request is sent, the dive it downloads to is recorded. The connector then
+ * appends every valid DATA frame before dispatching it. Once the DiveStore has stored the samples
+ * of the download, the journal is emptied. Otherwise, the journal is replayed into the store the
+ * next time the store is opened.
+ * The records are written on the own thread of the journal in the order they were given, so
+ * neither the event loop nor the reader of the connection ever waits for the storage. Writing only
+ * hands the record to the operating system, which keeps it if the app is killed. Forcing it onto
+ * the storage, which also protects it against power loss, is done for all records written within
+ * COMMIT_DELAY_MS at once. A failed write or commit is reported by the next call giving a record
+ * to the journal, or by sync(), whichever comes first.
+ */
+final class FrameJournal implements Closeable {
+    // The record of the dive the following frames belong to: id, depth, offset, starting time.
+    private static final byte RECORD_DIVE = 1;
+    // The record of a frame as received.
+    private static final byte RECORD_FRAME = 2;
+    // Type, payload length and CRC32 of the payload.
+    private static final int RECORD_HEADER_SIZE = 1 + 4 + 4;
+    private static final int DIVE_RECORD_SIZE = 8 + 4 + 4 + 8;
+    // The maximum payload of a record, anything larger is a broken record.
+    private static final int MAX_RECORD_SIZE = Framing.VARINT.getMaxLength();
+    // The time records may wait to be forced onto the storage, together with later records.
+    static final long COMMIT_DELAY_MS = 50;
+    // The amount of bytes written after which they are forced right away.
+    static final int COMMIT_BYTES = 64 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    // Writes the records and forces them onto the storage.
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "FrameJournal");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    // The amount of records given to the journal, never reset.
+    private final AtomicLong appended = new AtomicLong();
+    // The fields below are only used on the thread of the journal, or while replaying before any
+    // record is given.
+    private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    private final CRC32 crc = new CRC32();
+    // The amount of records written, never reset.
+    private long written;
+    // The amount of bytes in the journal.
+    private long length;
+    // The amount of bytes forced onto the storage.
+    private long committed;
+    private boolean commitScheduled = false;
+    // The first write or commit which failed, not reported yet.
+    private volatile IOException failure;
+
+    /**
+     * Opens the journal in the given file, creating it if necessary. Records already in the file
+     * are kept until they are replayed.
+     * @param file The file of the journal.
+     * @throws IOException In case the file could not be opened.
+     */
+    FrameJournal(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+        this.length = this.channel.size();
+        this.committed = this.length;
+        this.channel.position(this.length);
+    }
+
+    /**
+     * Records that the following frames download data of the given dive. Returns immediately.
+     * @param dive The dive the data is downloaded to, null if it is not stored. The frames of a
+     *             dive which is not stored are not replayed.
+     * @throws IOException In case an earlier write or commit failed. The record is given to the
+     * journal anyway.
+     */
+    void beginDive(Dive dive) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(DIVE_RECORD_SIZE);
+        if(dive == null) {
+            payload.putLong(-1);
+            payload.putInt(0);
+            payload.putInt(0);
+            payload.putLong(0);
+        } else {
+            payload.putLong(dive.getId());
+            payload.putInt(dive.getDepthM());
+            payload.putInt(dive.getOffsetS());
+            payload.putLong(dive.getStartingTime().getTime());
+        }
+        payload.flip();
+        append(RECORD_DIVE, payload);
+        reportFailure();
+    }
+
+    /**
+     * Appends a frame as received from the submarine. The frame is copied, so the buffer may be
+     * reused right away. Returns immediately.
+     * @param buffer The buffer holding the frame.
+     * @param offset The position of the frame in the buffer.
+     * @param length The length of the frame.
+     * @throws IOException In case an earlier write or commit failed. The frame is given to the
+     * journal anyway.
+     */
+    void appendFrame(byte[] buffer, int offset, int length) throws IOException {
+        append(RECORD_FRAME, ByteBuffer.wrap(Arrays.copyOfRange(buffer, offset, offset + length)));
+        reportFailure();
+    }
+
+    /**
+     * Returns a mark of the records given so far, for use with truncate().
+     * @return The mark.
+     */
+    long mark() {
+        return this.appended.get();
+    }
+
+    /**
+     * Empties the journal once the records given before are written, unless records were given
+     * after the given mark. Returns immediately.
+     * @param mark The mark of the records to drop.
+     */
+    void truncate(final long mark) {
+        this.writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(written != mark) {
+                    return;
+                }
+                try {
+                    truncate();
+                } catch(IOException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until the records given so far are written and forced onto the storage.
+     * @throws IOException In case a write or commit failed since the last report.
+     * @throws InterruptedException In case the thread was interrupted while waiting.
+     */
+    void sync() throws IOException, InterruptedException {
+        try {
+            this.writer.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    commit();
+                    return null;
+                }
+            }).get();
+        } catch(ExecutionException e) {
+            fail(e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause()));
+        }
+        reportFailure();
+    }
+
+    /**
+     * Replays the journal into the given store and empties it. Samples the store already holds
+     * are skipped. The samples of each dive are appended as a single block, so the store forces
+     * one block per dive instead of one per frame. Replaying stops at the first record which was
+     * not completely written. This is called while the store is opened, which is never done on the
+     * UI thread, before any record is given to the journal.
+     * @param store The store to replay into.
+     * @return The ids of the dives the journal downloaded data to, in the order they were
+     * journaled. Their downloads were interrupted, as a complete download empties the journal.
+     * @throws IOException In case the journal could not be read or the samples not be stored.
+     * @throws InterruptedException In case the thread was interrupted while waiting for the store.
+     */
+    List<Long> replay(DiveStore store) throws IOException, InterruptedException {
+        DatumDecoder decoder = new DatumDecoder();
+        DataReassembler reassembler = new DataReassembler();
+        // The last timestamp stored for each dive replayed to, in the order they were journaled.
+        Map<Long, Long> lastTimestamps = new LinkedHashMap<>();
+        // The samples to append to each dive, in the order the dives were replayed to.
+        Map<Long, SampleColumns> replayed = new LinkedHashMap<>();
+        long target = -1;
+        ByteBuffer payload = ByteBuffer.allocate(256);
+        long position = 0;
+        while(position + RECORD_HEADER_SIZE <= this.length) {
+            this.header.clear();
+            readFully(this.header, position);
+            byte type = this.header.get();
+            int size = this.header.getInt();
+            long checksum = this.header.getInt() & 0xFFFFFFFFL;
+            if(size < 0 || size > MAX_RECORD_SIZE || position + RECORD_HEADER_SIZE + size > this.length) {
+                break;
+            }
+            if(payload.capacity() < size) {
+                payload = ByteBuffer.allocate(size);
+            }
+            payload.clear();
+            payload.limit(size);
+            readFully(payload, position + RECORD_HEADER_SIZE);
+            this.crc.reset();
+            this.crc.update(payload.array(), 0, size);
+            if(this.crc.getValue() != checksum) {
+                break;
+            }
+            position += RECORD_HEADER_SIZE + size;
+            if(type == RECORD_DIVE && size == DIVE_RECORD_SIZE) {
+                target = payload.getLong();
+                if(target != -1 && !lastTimestamps.containsKey(target)) {
+                    Dive stored = store.load(target);
+                    if(stored == null) {
+                        store.create(new Dive(target, payload.getInt(), payload.getInt(), new Date(payload.getLong()), new SampleColumns(0)));
+                        lastTimestamps.put(target, -1L);
+                    } else {
+                        lastTimestamps.put(target, stored.getLastTimestamp());
+                    }
+                }
+            } else if(type == RECORD_FRAME && target != -1) {
+                DecodedMessage decoded;
+                try {
+                    decoded = decoder.decode(payload.array(), 0, size);
+                } catch(InvalidProtocolBufferException e) {
+                    continue;
+                }
+                if(SubmarineProtocol.isFragment(decoded.message)) {
+                    decoded = reassembler.add(decoded);
+                }
+                if(decoded == null || decoded.samples == null) {
+                    continue;
+                }
+                long last = lastTimestamps.get(target);
+                SampleColumns samples = replayed.get(target);
+                if(samples == null) {
+                    samples = new SampleColumns(decoded.samples.size());
+                    replayed.put(target, samples);
+                }
+                for(int i = 0; i < decoded.samples.size(); i++) {
+                    long timestamp = decoded.samples.getTimestamp(i);
+                    if(timestamp > last) {
+                        samples.add((int)timestamp, decoded.samples.getDepth(i),
+                                decoded.samples.getTemperature(i), decoded.samples.getPressure(i));
+                        last = timestamp;
+                    }
+                }
+                lastTimestamps.put(target, last);
+            }
+        }
+        for(Map.Entry<Long, SampleColumns> entry : replayed.entrySet()) {
+            store.append(entry.getKey(), entry.getValue());
+        }
+        store.sync();
+        truncate();
+        return new ArrayList<>(lastTimestamps.keySet());
+    }
+
+    /**
+     * Writes and commits the records given and closes the journal.
+     * @throws IOException In case writing, committing or closing failed.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing the journal");
+        } finally {
+            this.writer.shutdown();
+            this.file.close();
+        }
+    }
+
+    private void append(final byte type, final ByteBuffer payload) {
+        this.appended.incrementAndGet();
+        this.writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(type, payload);
+                } catch(IOException e) {
+                    fail(e);
+                }
+                written++;
+            }
+        });
+    }
+
+    /**
+     * Writes a record. Runs on the thread of the journal.
+     * @param type The type of the record.
+     * @param payload The payload of the record.
+     * @throws IOException In case the record could not be written.
+     */
+    private void write(byte type, ByteBuffer payload) throws IOException {
+        int size = payload.remaining();
+        this.crc.reset();
+        this.crc.update(payload.array(), payload.arrayOffset() + payload.position(), size);
+        this.header.clear();
+        this.header.put(type);
+        this.header.putInt(size);
+        this.header.putInt((int)this.crc.getValue());
+        this.header.flip();
+        ByteBuffer[] record = new ByteBuffer[]{this.header, payload};
+        while(this.header.hasRemaining() || payload.hasRemaining()) {
+            this.channel.write(record);
+        }
+        this.length += RECORD_HEADER_SIZE + size;
+        scheduleCommit();
+    }
+
+    /**
+     * Forces the records written onto the storage. Runs on the thread of the journal.
+     * @throws IOException In case forcing failed.
+     */
+    private void commit() throws IOException {
+        this.commitScheduled = false;
+        if(this.committed == this.length) {
+            return;
+        }
+        this.channel.force(false);
+        this.committed = this.length;
+    }
+
+    /**
+     * Schedules forcing the records written, right away if enough bytes are waiting. Runs on the
+     * thread of the journal.
+     */
+    private void scheduleCommit() {
+        boolean full = this.length - this.committed >= COMMIT_BYTES;
+        if(this.commitScheduled && !full) {
+            return;
+        }
+        this.commitScheduled = true;
+        this.writer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    commit();
+                } catch(IOException e) {
+                    fail(e);
+                }
+            }
+        }, full ? 0 : COMMIT_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Empties the journal. Runs on the thread of the journal, or while replaying.
+     * @throws IOException In case the journal could not be emptied.
+     */
+    private void truncate() throws IOException {
+        if(this.length == 0) {
+            return;
+        }
+        this.channel.truncate(0);
+        this.channel.position(0);
+        this.length = 0;
+        this.committed = 0;
+    }
+
+    private synchronized void fail(IOException e) {
+        if(this.failure == null) {
+            this.failure = e;
+        }
+    }
+
+    /**
+     * Throws the first failure not reported yet, once.
+     * @throws IOException The failure.
+     */
+    private void reportFailure() throws IOException {
+        IOException failure;
+        synchronized(this) {
+            failure = this.failure;
+            this.failure = null;
+        }
+        if(failure != null) {
+            throw failure;
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(this.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Journal ended unexpectedly");
+            }
+        }
+        buffer.flip();
+    }
+}
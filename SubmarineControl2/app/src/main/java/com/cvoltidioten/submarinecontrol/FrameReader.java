@@ -0,0 +1,160 @@
+package com.cvoltidioten.submarinecontrol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a byte stream into length-prefixed frames according to the current framing. Bytes are
+ * read from the underlying stream in bulk into a reusable buffer, such that a frame does not cost
+ * a blocking read per byte. The payload of the last frame read is
+ * accessible via getBuffer(), getFrameOffset() and getFrameLength() until the next call to
+ * readFrame().
+ */
+class FrameReader {
+    private static final int BUFFER_SIZE = 4096;
+
+    // The stream to read from.
+    private final InputStream inputStream;
+    // How the length of a frame is encoded.
+    private volatile Framing framing = Framing.LEGACY;
+    // The buffer holding the bytes read but not yet consumed.
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    // The index of the first unconsumed byte in the buffer.
+    private int position = 0;
+    // The index after the last valid byte in the buffer.
+    private int limit = 0;
+    // The position of the payload of the last frame read.
+    private int frameOffset = 0;
+    // The length of the payload of the last frame read.
+    private int frameLength = 0;
+
+    /**
+     * Creates a new frame reader on the given stream.
+     * @param inputStream The stream to read the frames from.
+     */
+    FrameReader(InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * Sets the framing used for all following frames.
+     * @param framing The new framing.
+     */
+    void setFraming(Framing framing) {
+        this.framing = framing;
+    }
+
+    /**
+     * Reads the next complete frame. Blocks until the frame has arrived completely.
+     * @throws EOFException In case the stream ended, possibly in the middle of a frame.
+     * @throws IOException In case reading from the stream failed or the frame is too large.
+     */
+    void readFrame() throws IOException {
+        while(true) {
+            int length = -1;
+            int headerLength = 0;
+            switch(this.framing) {
+                case LEGACY:
+                    if(this.limit - this.position >= 1) {
+                        length = this.buffer[this.position] & 0xFF;
+                        headerLength = 1;
+                    }
+                    break;
+                case VARINT:
+                    int shift = 0;
+                    int value = 0;
+                    for(int i = this.position; i < this.limit; i++) {
+                        if(i - this.position == 5) {
+                            throw new IOException("Malformed varint frame length");
+                        }
+                        byte b = this.buffer[i];
+                        value |= (b & 0x7F) << shift;
+                        shift += 7;
+                        if(b >= 0) {
+                            length = value;
+                            headerLength = i - this.position + 1;
+                            break;
+                        }
+                    }
+                    break;
+            }
+            if(headerLength > 0 && (length < 0 || length > this.framing.getMaxLength())) {
+                throw new IOException("Frame length " + length + " exceeds the maximum");
+            }
+            if(headerLength > 0) {
+                if(this.limit - this.position >= headerLength + length) {
+                    this.frameOffset = this.position + headerLength;
+                    this.frameLength = length;
+                    this.position += headerLength + length;
+                    return;
+                }
+                ensureCapacity(headerLength + length);
+            } else {
+                ensureCapacity(5);
+            }
+            fill();
+        }
+    }
+
+    /**
+     * Returns the buffer containing the payload of the last frame read.
+     * @return The buffer containing the payload.
+     */
+    byte[] getBuffer() {
+        return this.buffer;
+    }
+
+    /**
+     * Returns the position of the payload of the last frame read inside the buffer.
+     * @return The offset of the payload.
+     */
+    int getFrameOffset() {
+        return this.frameOffset;
+    }
+
+    /**
+     * Returns the length of the payload of the last frame read.
+     * @return The length of the payload.
+     */
+    int getFrameLength() {
+        return this.frameLength;
+    }
+
+    /**
+     * Makes sure that the given amount of bytes starting at the current position fits into the
+     * buffer by moving the unconsumed bytes to its start.
+     * @param required The amount of bytes required starting at the current position.
+     */
+    private void ensureCapacity(int required) {
+        if(this.position + required <= this.buffer.length) {
+            return;
+        }
+        int available = this.limit - this.position;
+        byte[] target = this.buffer;
+        if(required > this.buffer.length) {
+            target = new byte[Math.max(required, this.buffer.length * 2)];
+        }
+        System.arraycopy(this.buffer, this.position, target, 0, available);
+        this.buffer = target;
+        this.position = 0;
+        this.limit = available;
+    }
+
+    /**
+     * Reads as many bytes as currently available into the free space of the buffer. Blocks until
+     * at least one byte was read.
+     * @throws EOFException In case the stream ended.
+     * @throws IOException In case reading from the stream failed.
+     */
+    private void fill() throws IOException {
+        int read = this.inputStream.read(this.buffer, this.limit, this.buffer.length - this.limit);
+        if(read < 0) {
+            if(this.limit > this.position) {
+                throw new EOFException("Stream ended inside a frame");
+            }
+            throw new EOFException("Stream ended");
+        }
+        this.limit += read;
+    }
+}
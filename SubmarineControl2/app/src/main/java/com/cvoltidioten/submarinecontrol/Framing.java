@@ -0,0 +1,56 @@
+package com.cvoltidioten.submarinecontrol;
+
+import com.google.protobuf.MessageLite;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The ways a message can be framed on the byte stream to the submarine. LEGACY prefixes every
+ * message with a single length byte, which limits messages to 255 bytes and is the only framing
+ * older firmware understands. VARINT prefixes every message with its length as protobuf varint,
+ * i.e. the format of writeDelimitedTo() and parseDelimitedFrom(). Both framings are identical for
+ * messages shorter than 128 bytes.
+ */
+enum Framing {
+    LEGACY(255) {
+        @Override
+        void writeFrame(MessageLite message, OutputStream outputStream) throws IOException {
+            int size = message.getSerializedSize();
+            if(size > getMaxLength()) {
+                throw new IOException("Message of " + size + " bytes exceeds the legacy frame limit");
+            }
+            outputStream.write(size);
+            message.writeTo(outputStream);
+        }
+    },
+    VARINT(1 << 20) {
+        @Override
+        void writeFrame(MessageLite message, OutputStream outputStream) throws IOException {
+            message.writeDelimitedTo(outputStream);
+        }
+    };
+
+    // The maximum payload length we accept for a single frame.
+    private final int maxLength;
+
+    Framing(int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Returns the maximum payload length of a single frame.
+     * @return The maximum payload length in bytes.
+     */
+    int getMaxLength() {
+        return this.maxLength;
+    }
+
+    /**
+     * Writes the given message including its length prefix to the given stream.
+     * @param message The message to write.
+     * @param outputStream The stream to write to.
+     * @throws IOException In case the message is too large for this framing or writing failed.
+     */
+    abstract void writeFrame(MessageLite message, OutputStream outputStream) throws IOException;
+}
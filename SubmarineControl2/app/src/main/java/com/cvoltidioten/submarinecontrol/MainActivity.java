@@ -16,19 +16,27 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import java.text.DecimalFormat;
+import java.util.concurrent.Executor;
 
 /**
  * The main activity which displays an overview of the submarine data. If the submarine sends new
  * data information such as battery status, this view is updated automatically.
  * From this view, the user can start a new dive.
  */
-public class MainActivity extends AppCompatActivity implements SubmarineConnector.SubmarineConnectionNotifyable, SubmarineConnector.SubmarineMessageNotifyable {
+public class MainActivity extends AppCompatActivity implements SubmarineConnector.SubmarineConnectionNotifyable, Submarine.SubmarineStatusNotifyable {
     private static final String TAG = "Main Activity";
 
     // The submarine which was obtained from the start activity.
     private static Submarine submarine;
     // The sidebar drawer toggle.
     private ActionBarDrawerToggle drawerToggle;
+    // Runs the status updates on the UI thread.
+    private final Executor uiExecutor = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runOnUiThread(runnable);
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -66,12 +74,12 @@ public class MainActivity extends AppCompatActivity implements SubmarineConnecto
         // Sets up submarine information.
         if(submarine != null) {
             ((TextView) header.findViewById(R.id.drawer_text)).setText(submarine.getName());
-            submarine.registerMessageReceiver(TAG, this);
+            // Also shows the current submarine data.
+            submarine.registerStatusReceiver(TAG, this, this.uiExecutor);
             submarine.registerConnectionStatusReceiver(TAG, this);
         } else {
             ((TextView) header.findViewById(R.id.drawer_text)).setText(R.string.default_submarine_name);
         }
-        updateSubmarineData();
     }
 
     @Override
@@ -79,7 +87,7 @@ public class MainActivity extends AppCompatActivity implements SubmarineConnecto
         super.onPause();
         if(submarine != null) {
             submarine.removeConnectionStatusReceiver(TAG);
-            submarine.removeMessageReceiver(TAG);
+            submarine.removeStatusReceiver(TAG);
         }
     }
 
@@ -89,7 +97,7 @@ public class MainActivity extends AppCompatActivity implements SubmarineConnecto
         if(submarine != null) {
             // Kills all remaining threads on stop.
             submarine.removeConnectionStatusReceiver(TAG);
-            submarine.removeMessageReceiver(TAG);
+            submarine.removeStatusReceiver(TAG);
             submarine.disconnect();
         }
     }
@@ -118,7 +126,8 @@ public class MainActivity extends AppCompatActivity implements SubmarineConnecto
                 ((DrawerLayout)findViewById(R.id.main_drawer_layout)).closeDrawers();
                 return true;
             case R.id.main_nav_previous_dives:
-                // TODO start new intent to previous dive activity
+                ((DrawerLayout)findViewById(R.id.main_drawer_layout)).closeDrawers();
+                startActivity(new Intent(this, PreviousDivesActivity.class));
                 return true;
             case R.id.main_nav_new_dive:
                 ((DrawerLayout)findViewById(R.id.main_drawer_layout)).closeDrawers();
@@ -147,9 +156,8 @@ public class MainActivity extends AppCompatActivity implements SubmarineConnecto
                 public void run() {
                     // Case: Submarine was diving and is now available again.
                     if(submarine != null && submarine.getStatus() == SubmarineProtos.Status.StatusType.DIVING) {
-                        // We then ask for a status update of the submarine.
+                        // We then ask for a status update of the submarine, which is shown on arrival.
                         submarine.updateStatus();
-                        updateSubmarineData();
                     }
                 }
             });
@@ -164,20 +172,12 @@ public class MainActivity extends AppCompatActivity implements SubmarineConnecto
     }
 
     /**
-     * If we get a status message, we update the submarine information accordingly.
-     * @param message The message to handle.
+     * If the status changes, we update the submarine information accordingly. Runs on the UI
+     * thread. Status updates arriving while this refresh is pending are folded into it.
+     * @param state The newest state of the submarine.
      */
-    public void receiveMessage(final SubmarineProtos.SubmarineMessage message) {
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                switch(message.getType()) {
-                    case STATUS:
-                        updateSubmarineData();
-                        break;
-                }
-            }
-        });
+    public void receiveStatus(SubmarineState state) {
+        updateSubmarineData();
     }
 
     public static void setSubmarine(Submarine _submarine) {
@@ -234,73 +234,74 @@ public class MainActivity extends AppCompatActivity implements SubmarineConnecto
      * @param view
      */
     public void cancelDive(View view) {
+        // The changed status is shown once the submarine published it.
         if(submarine != null) {
             submarine.cancelDive();
         }
-        updateSubmarineData();
     }
 
     /**
      * Updates the view containing all the submarine data with the current data of the submarine
-     * object.
+     * object. Must be called on the UI thread.
      */
     protected void updateSubmarineData() {
         if(submarine != null) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    ((TextView) findViewById(R.id.submarine_title)).setText(submarine.getName());
-                    TextView statusView = (TextView) findViewById(R.id.submarine_status);
-                    switch (submarine.getStatus()) {
-                        case AVAILABLE:
-                            findViewById(R.id.cancel_dive_button).setVisibility(View.INVISIBLE);
-                            findViewById(R.id.dive_schedule_bar).setVisibility(View.INVISIBLE);
-                            findViewById(R.id.new_dive_button).setVisibility(View.VISIBLE);
-                            statusView.setText(R.string.online);
-                            break;
-                        case DIVE_SCHEDULED:
-                            findViewById(R.id.cancel_dive_button).setVisibility(View.VISIBLE);
-                            findViewById(R.id.dive_schedule_bar).setVisibility(View.VISIBLE);
-                            findViewById(R.id.new_dive_button).setVisibility(View.INVISIBLE);
-                            statusView.setText(R.string.dive_scheduled);
-                            break;
-                        case DIVING:
-                            findViewById(R.id.cancel_dive_button).setVisibility(View.INVISIBLE);
-                            findViewById(R.id.dive_schedule_bar).setVisibility(View.INVISIBLE);
-                            findViewById(R.id.new_dive_button).setVisibility(View.INVISIBLE);
-                            statusView.setText(R.string.diving);
-                            break;
-                        default:
-                            findViewById(R.id.cancel_dive_button).setVisibility(View.INVISIBLE);
-                            findViewById(R.id.dive_schedule_bar).setVisibility(View.INVISIBLE);
-                            findViewById(R.id.new_dive_button).setVisibility(View.INVISIBLE);
-                            statusView.setText(R.string.offline);
-                            break;
-                    }
-                    ((TextView) findViewById(R.id.submarine_battery)).setText(submarine.getBatteryPercentage() + getResources().getString(R.string.percent));
-                    if(submarine.getDives().size() > 0 && submarine.getDives().get(0).getData() != null && submarine.getDives().get(submarine.getDives().size() - 1).getData().size() > 0) {
-                        ((TextView) findViewById(R.id.submarine_last_dive)).setText(submarine.getDives().get(0).getStartingTime().toString());
-                        ((TextView) findViewById(R.id.submarine_temperature)).setText(new DecimalFormat("##.#").format(submarine.getDives().get(submarine.getDives().size() - 1).getData().get(0).getTemperatureC()) + R.string.degc);
-                    } else {
-                        ((TextView) findViewById(R.id.submarine_last_dive)).setText(R.string.no_dive);
-                        ((TextView) findViewById(R.id.submarine_temperature)).setText(R.string.default_temp);
-                    }
-                }
-            });
+            SubmarineState state = submarine.getState();
+            ((TextView) findViewById(R.id.submarine_title)).setText(submarine.getName());
+            TextView statusView = (TextView) findViewById(R.id.submarine_status);
+            switch (state.getStatus()) {
+                case AVAILABLE:
+                    findViewById(R.id.cancel_dive_button).setVisibility(View.INVISIBLE);
+                    findViewById(R.id.dive_schedule_bar).setVisibility(View.INVISIBLE);
+                    findViewById(R.id.new_dive_button).setVisibility(View.VISIBLE);
+                    statusView.setText(R.string.online);
+                    break;
+                case DIVE_SCHEDULED:
+                    findViewById(R.id.cancel_dive_button).setVisibility(View.VISIBLE);
+                    findViewById(R.id.dive_schedule_bar).setVisibility(View.VISIBLE);
+                    findViewById(R.id.new_dive_button).setVisibility(View.INVISIBLE);
+                    statusView.setText(R.string.dive_scheduled);
+                    break;
+                case DIVING:
+                    findViewById(R.id.cancel_dive_button).setVisibility(View.INVISIBLE);
+                    findViewById(R.id.dive_schedule_bar).setVisibility(View.INVISIBLE);
+                    findViewById(R.id.new_dive_button).setVisibility(View.INVISIBLE);
+                    statusView.setText(R.string.diving);
+                    break;
+                default:
+                    findViewById(R.id.cancel_dive_button).setVisibility(View.INVISIBLE);
+                    findViewById(R.id.dive_schedule_bar).setVisibility(View.INVISIBLE);
+                    findViewById(R.id.new_dive_button).setVisibility(View.INVISIBLE);
+                    statusView.setText(R.string.offline);
+                    break;
+            }
+            ((TextView) findViewById(R.id.submarine_battery)).setText(state.getBatteryPercentage() + getResources().getString(R.string.percent));
+            if(submarine.getDives().size() > 0 && submarine.getDives().get(0).getData() != null && submarine.getDives().get(submarine.getDives().size() - 1).getData().size() > 0) {
+                ((TextView) findViewById(R.id.submarine_last_dive)).setText(submarine.getDives().get(0).getStartingTime().toString());
+                ((TextView) findViewById(R.id.submarine_temperature)).setText(new DecimalFormat("##.#").format(submarine.getDives().get(submarine.getDives().size() - 1).getData().get(0).getTemperatureC()) + R.string.degc);
+            } else {
+                ((TextView) findViewById(R.id.submarine_last_dive)).setText(R.string.no_dive);
+                ((TextView) findViewById(R.id.submarine_temperature)).setText(R.string.default_temp);
+            }
         }
     }
 
     /**
      * Is called by the new dive dialog in case the timer of the new dive is expired. We disconnect
-     * from the submarine and display the diving activity.
+     * from the submarine and display the diving activity, which downloads the data into the
+     * scheduled dive.
      */
     protected void beginDive() {
+        Intent intent = new Intent(this, DiveActivity.class);
         if(submarine != null) {
-            submarine.removeMessageReceiver(TAG);
+            Dive dive = submarine.getState().getCurrentDive();
+            if(dive != null) {
+                intent.putExtra(DiveActivity.EXTRA_DIVE_ID, dive.getId());
+            }
+            submarine.removeStatusReceiver(TAG);
             submarine.removeConnectionStatusReceiver(TAG);
             submarine.disconnect();
         }
-        Intent intent = new Intent(this, DiveActivity.class);
         intent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP); // Kills this activity.
         startActivity(intent);
         finish();
@@ -0,0 +1,169 @@
+package com.cvoltidioten.submarinecontrol;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the incoming messages as a stream with demand signalling, following the rules of
+ * Reactive Streams. Subscribers request the amount of messages they are ready for and only get
+ * that many. Every subscription buffers a bounded amount of messages beyond its demand; once the
+ * buffer of any subscription is full, publishing blocks until it is consumed or cancelled. The
+ * publishing thread, i.e. the reader of the connection, thus stops reading from the submarine
+ * while a subscriber falls behind instead of buffering without bounds. Note that this holds up
+ * every other subscriber and receiver, too. A subscriber which does not make room within the
+ * stall timeout is therefore considered stalled: its subscription ends with a TimeoutException
+ * passed to onError(), and publishing goes on without it.
+ */
+class MessagePublisher {
+    private final Executor executor;
+    private final int bufferCapacity;
+    private final long stallTimeoutMs;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates a new publisher.
+     * @param executor The executor to signal the subscribers on.
+     * @param bufferCapacity The maximum amount of messages buffered per subscription.
+     * @param stallTimeoutMs The time publishing waits for a full subscription before ending it.
+     */
+    MessagePublisher(Executor executor, int bufferCapacity, long stallTimeoutMs) {
+        this.executor = executor;
+        this.bufferCapacity = bufferCapacity;
+        this.stallTimeoutMs = stallTimeoutMs;
+    }
+
+    /**
+     * Subscribes the given subscriber to the messages of the given types. Its onSubscribe() is
+     * called before this method returns, no messages are delivered until it requests some.
+     * @param subscriber The subscriber.
+     * @param types The message types to subscribe to, null for all types.
+     */
+    void subscribe(SubmarineConnector.SubmarineMessageSubscriber subscriber,
+                   Set<SubmarineProtos.SubmarineMessage.MessageType> types) {
+        Subscription subscription = new Subscription(subscriber, types);
+        subscriber.onSubscribe(subscription);
+        if(!subscription.cancelled) {
+            this.subscriptions.add(subscription);
+        }
+    }
+
+    /**
+     * Publishes the given message to all subscriptions to its type. Blocks while the buffer of one
+     * of them is full, at most for the stall timeout per subscription.
+     * @param message The message to publish.
+     * @throws InterruptedException In case we were interrupted while waiting for a subscriber.
+     */
+    void publish(DecodedMessage message) throws InterruptedException {
+        for(Subscription subscription : this.subscriptions) {
+            if(subscription.types == null || subscription.types.contains(message.message.getType())) {
+                if(subscription.buffer.offer(message, this.stallTimeoutMs, TimeUnit.MILLISECONDS)) {
+                    subscription.drain();
+                } else if(!subscription.cancelled) {
+                    subscription.fail(new TimeoutException("Subscriber did not request further messages within "
+                            + this.stallTimeoutMs + " ms"));
+                }
+            }
+        }
+    }
+
+    /**
+     * The subscription of a single subscriber. Messages are delivered serially on the executor,
+     * never more than requested.
+     */
+    private class Subscription implements SubmarineConnector.MessageSubscription, Runnable {
+        private final SubmarineConnector.SubmarineMessageSubscriber subscriber;
+        private final Set<SubmarineProtos.SubmarineMessage.MessageType> types;
+        private final BlockingQueue<DecodedMessage> buffer = new ArrayBlockingQueue<>(bufferCapacity);
+        // The amount of messages requested but not yet delivered, Long.MAX_VALUE for unbounded.
+        private final AtomicLong demand = new AtomicLong();
+        // The amount of drain requests since the last delivery run started, 0 if none is running.
+        private final AtomicInteger work = new AtomicInteger();
+        private volatile boolean cancelled = false;
+        // The error to signal once instead of further messages.
+        private volatile Throwable error;
+
+        Subscription(SubmarineConnector.SubmarineMessageSubscriber subscriber,
+                     Set<SubmarineProtos.SubmarineMessage.MessageType> types) {
+            this.subscriber = subscriber;
+            this.types = types;
+        }
+
+        @Override
+        public void request(long n) {
+            if(n <= 0) {
+                this.error = new IllegalArgumentException("Requested " + n + " messages, must be positive");
+            } else {
+                long current;
+                long updated;
+                do {
+                    current = this.demand.get();
+                    updated = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while(!this.demand.compareAndSet(current, updated));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            this.cancelled = true;
+            subscriptions.remove(this);
+            // Releases a publisher waiting for space.
+            this.buffer.clear();
+        }
+
+        /**
+         * Ends the subscription with the given error, which is signalled once the subscriber is
+         * not busy. Messages not delivered yet are dropped.
+         * @param error The error to signal.
+         */
+        void fail(Throwable error) {
+            this.error = error;
+            subscriptions.remove(this);
+            this.buffer.clear();
+            drain();
+        }
+
+        void drain() {
+            if(this.work.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        public void run() {
+            int missed = 1;
+            while(true) {
+                while(!this.cancelled) {
+                    if(this.error != null) {
+                        cancel();
+                        this.subscriber.onError(this.error);
+                        return;
+                    }
+                    long demand = this.demand.get();
+                    if(demand == 0) {
+                        break;
+                    }
+                    DecodedMessage message = this.buffer.poll();
+                    if(message == null) {
+                        break;
+                    }
+                    if(demand != Long.MAX_VALUE) {
+                        this.demand.decrementAndGet();
+                    }
+                    this.subscriber.onNext(message);
+                }
+                missed = this.work.addAndGet(-missed);
+                if(missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -12,6 +12,8 @@ import android.widget.EditText;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * A dialog which allows the user to issue a new dive. It contains two input fields, one for the
  * depth and one for the offset. On "okay", it starts a timer which represents the dive scheduler.
@@ -20,6 +22,8 @@ import android.widget.TextView;
  */
 public class NewDiveDialog extends DialogFragment {
     private static final String TAG = "New Dive Dialog";
+    // The updates of the progress bar per second of the dive offset.
+    private static final int PROGRESS_TICKS_PER_S = 10;
 
     private Submarine submarine;
     private MainActivity mainActivity;
@@ -54,29 +58,32 @@ public class NewDiveDialog extends DialogFragment {
                             getActivity().findViewById(R.id.new_dive_button).setVisibility(View.INVISIBLE);
                             getActivity().findViewById(R.id.cancel_dive_button).setVisibility(View.VISIBLE);
                             progressBar.setVisibility(View.VISIBLE);
-                            progressBar.setMax(offsetS * 100);
-                            new Thread() {
+                            progressBar.setMax(offsetS * PROGRESS_TICKS_PER_S);
+                            // Ticks on the event loop until the dive begins.
+                            SubmarineEventLoop.getInstance().execute(new Runnable() {
+                                private int time = 0;
+
                                 @Override
                                 public void run() {
-                                    int time = 0;
-                                    while(time < offsetS * 100) {
-                                        try {
-                                            sleep(10);
-                                            time++;
-                                            progressBar.setProgress(time);
-                                        } catch (InterruptedException e) {
-                                            Log.e(TAG, "Progress bar update: ", e);
-                                        }
+                                    progressBar.setProgress(time);
+                                    if(time < offsetS * PROGRESS_TICKS_PER_S) {
+                                        time++;
+                                        SubmarineEventLoop.getInstance().schedule(this, 1000 / PROGRESS_TICKS_PER_S, TimeUnit.MILLISECONDS);
+                                        return;
                                     }
+                                    // Setting the status also refreshes the main activity.
                                     if(submarine.getStatus() != SubmarineProtos.Status.StatusType.AVAILABLE) {
+                                        Log.i(TAG, "Dive begins");
                                         submarine.setStatus(SubmarineProtos.Status.StatusType.DIVING);
-                                        mainActivity.beginDive();
-                                    }
-                                    if(mainActivity != null) {
-                                        mainActivity.updateSubmarineData();
+                                        mainActivity.runOnUiThread(new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                mainActivity.beginDive();
+                                            }
+                                        });
                                     }
                                 }
-                            }.start();
+                            });
                         }
                     }
                 })
@@ -0,0 +1,129 @@
+package com.cvoltidioten.submarinecontrol;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps track of the requests waiting for a response of the submarine. Every request gets a
+ * correlation id which is sent along and echoed by the submarine, such that any amount of
+ * requests can be in flight at the same time. Older firmware does not echo the id, but answers in
+ * order. Thus, a response without id is matched to the oldest pending request expecting a message
+ * of its type. Pending requests fail once their timeout expired.
+ */
+class PendingRequests {
+    // Runs the timeouts of the pending requests.
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong nextCorrelationId = new AtomicLong(1);
+    // The pending requests in order of sending.
+    private final List<SubmarineResponse> pending = new ArrayList<>();
+
+    PendingRequests(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Returns the type of message the submarine answers the given request with.
+     * @param requestType The type of the request.
+     * @return The type of the response, null if the submarine does not answer this request.
+     */
+    static SubmarineProtos.SubmarineMessage.MessageType getResponseType(SubmarineProtos.ControlMessage.MessageType requestType) {
+        switch(requestType) {
+            case STATUS_REQUEST:
+                return SubmarineProtos.SubmarineMessage.MessageType.STATUS;
+            case DATA_REQUEST:
+                return SubmarineProtos.SubmarineMessage.MessageType.DATA;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Adds a new pending request.
+     * @param requestType The type of the request.
+     * @param timeoutMs The time after which the request fails if no response arrived.
+     * @return The pending response to the request.
+     * @throws IllegalArgumentException In case the submarine does not answer this request.
+     */
+    SubmarineResponse add(SubmarineProtos.ControlMessage.MessageType requestType, long timeoutMs) {
+        SubmarineProtos.SubmarineMessage.MessageType responseType = getResponseType(requestType);
+        if(responseType == null) {
+            throw new IllegalArgumentException("The submarine does not answer requests of type " + requestType);
+        }
+        final SubmarineResponse response = new SubmarineResponse(this.nextCorrelationId.getAndIncrement(), responseType);
+        final AtomicReference<ScheduledFuture<?>> timeout = new AtomicReference<>();
+        response.setOnDone(new Runnable() {
+            @Override
+            public void run() {
+                remove(response);
+                ScheduledFuture<?> scheduled = timeout.get();
+                if(scheduled != null) {
+                    scheduled.cancel(false);
+                }
+            }
+        });
+        synchronized(this.pending) {
+            this.pending.add(response);
+        }
+        timeout.set(this.scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                response.fail(new TimeoutException("No response to request " + response.getCorrelationId()));
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS));
+        if(response.isDone()) {
+            timeout.get().cancel(false);
+        }
+        return response;
+    }
+
+    /**
+     * Completes the pending request the given message answers, if any.
+     * @param decoded The message received from the submarine.
+     * @return True if a pending request was completed.
+     */
+    boolean complete(DecodedMessage decoded) {
+        SubmarineProtos.SubmarineMessage message = decoded.message;
+        long requestId = SubmarineProtocol.getRequestId(message);
+        SubmarineResponse match = null;
+        synchronized(this.pending) {
+            Iterator<SubmarineResponse> it = this.pending.iterator();
+            while(it.hasNext()) {
+                SubmarineResponse response = it.next();
+                if(requestId != 0 ? response.getCorrelationId() == requestId : response.getResponseType() == message.getType()) {
+                    it.remove();
+                    match = response;
+                    break;
+                }
+            }
+        }
+        return match != null && match.complete(decoded);
+    }
+
+    /**
+     * Fails all pending requests.
+     * @param failure The reason of the failure.
+     */
+    void failAll(Exception failure) {
+        List<SubmarineResponse> failed;
+        synchronized(this.pending) {
+            failed = new ArrayList<>(this.pending);
+            this.pending.clear();
+        }
+        for(SubmarineResponse response : failed) {
+            response.fail(failure);
+        }
+    }
+
+    private void remove(SubmarineResponse response) {
+        synchronized(this.pending) {
+            this.pending.remove(response);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.cvoltidioten.submarinecontrol;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.Toolbar;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.DecimalFormat;
+
+/**
+ * This activity lists the stored dives, newest first. The list is read from the catalog of the
+ * dive store row by row as it is scrolled, without reading any samples. Selecting a dive shows
+ * its data, which the data activity loads in the background.
+ */
+public class PreviousDivesActivity extends AppCompatActivity implements AdapterView.OnItemClickListener {
+    private final static String TAG = "PreviousDivesActivity";
+
+    private DiveCatalog catalog;
+    // The rows of the catalog in the order they are listed.
+    private int[] order = new int[0];
+    private final DiveAdapter adapter = new DiveAdapter();
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_previous_dives);
+        ((Toolbar)findViewById(R.id.toolbar)).setTitle("Previous dives");
+
+        ListView list = (ListView)findViewById(R.id.previous_dives_list);
+        list.setEmptyView(findViewById(R.id.previous_dives_empty));
+        list.setAdapter(this.adapter);
+        list.setOnItemClickListener(this);
+
+        // Lists the dives once the store is open, which is done in the background.
+        DiveStore.open(this, new DiveStore.DiveStoreNotifyable() {
+            @Override
+            public void receiveStore(final DiveStore store) {
+                final int[] order = store.getCatalog().sortByStartingTime();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        catalog = store.getCatalog();
+                        PreviousDivesActivity.this.order = order;
+                        adapter.notifyDataSetChanged();
+                    }
+                });
+            }
+
+            @Override
+            public void receiveFailure(IOException failure) {
+                Log.e(TAG, "Unable to open the dive store", failure);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        ((TextView)findViewById(R.id.previous_dives_empty)).setText(R.string.dive_store_failed);
+                        Toast.makeText(PreviousDivesActivity.this, R.string.dive_store_failed, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+        DiveCatalog.Summary summary = this.catalog.get(this.order[position]);
+        if(summary.getSampleCount() == 0) {
+            return;
+        }
+        // Passes just the id, the data activity loads the dive from the store in the background.
+        Intent intent = new Intent(this, DataActivity.class);
+        intent.putExtra(DataActivity.EXTRA_DIVE_ID, summary.getId());
+        startActivity(intent);
+    }
+
+    /**
+     * Shows a row of the catalog per dive, read when it is shown.
+     */
+    private class DiveAdapter extends BaseAdapter {
+        private final DateFormat dateFormat = DateFormat.getDateTimeInstance();
+        private final DecimalFormat depthFormat = new DecimalFormat("#.##");
+        private final DecimalFormat temperatureFormat = new DecimalFormat("##.#");
+
+        @Override
+        public int getCount() {
+            return order.length;
+        }
+
+        @Override
+        public DiveCatalog.Summary getItem(int position) {
+            return catalog.get(order[position]);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return getItem(position).getId();
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            View view = convertView;
+            if(view == null) {
+                view = getLayoutInflater().inflate(android.R.layout.simple_list_item_2, parent, false);
+            }
+            DiveCatalog.Summary summary = getItem(position);
+            ((TextView)view.findViewById(android.R.id.text1)).setText(this.dateFormat.format(summary.getStartingTime()));
+            String details = summary.getDepthM() + getString(R.string.meters) + ", " + summary.getSampleCount() + " " + getString(R.string.samples);
+            if(summary.getSampleCount() > 0) {
+                details += ", " + this.depthFormat.format(summary.getMaxDepth()) + getString(R.string.meters)
+                        + ", " + this.temperatureFormat.format(summary.getMinTemperature()) + getString(R.string.temperature);
+            }
+            ((TextView)view.findViewById(android.R.id.text2)).setText(details);
+            return view;
+        }
+    }
+}
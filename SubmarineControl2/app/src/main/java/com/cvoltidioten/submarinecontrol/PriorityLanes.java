@@ -0,0 +1,143 @@
+package com.cvoltidioten.submarinecontrol;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A blocking queue consisting of several bounded lanes of different priority. Lane 0 has the
+ * highest priority. Elements are always taken from the highest priority lane holding any, in
+ * arrival order within a lane. As every lane is bounded separately, a full low priority lane
+ * never keeps high priority elements out.
+ * @param <E> The type of the queued elements.
+ */
+class PriorityLanes<E> {
+    private final List<BlockingQueue<E>> lanes;
+    // One permit per element in any lane.
+    private final Semaphore available = new Semaphore(0);
+
+    /**
+     * Creates new lanes.
+     * @param laneCount The amount of lanes.
+     * @param laneCapacity The maximum amount of elements per lane.
+     */
+    PriorityLanes(int laneCount, int laneCapacity) {
+        this.lanes = new ArrayList<>(laneCount);
+        for(int i = 0; i < laneCount; i++) {
+            this.lanes.add(new ArrayBlockingQueue<E>(laneCapacity));
+        }
+    }
+
+    /**
+     * Adds the given element to the given lane if it has space left. Returns immediately.
+     * @param lane The lane to add to.
+     * @param element The element to add.
+     * @return True if the element was added, false if the lane is full.
+     */
+    boolean offer(int lane, E element) {
+        if(this.lanes.get(lane).offer(element)) {
+            this.available.release();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the given element to the given lane, waiting for space if necessary.
+     * @param lane The lane to add to.
+     * @param element The element to add.
+     * @throws InterruptedException In case we were interrupted while waiting.
+     */
+    void put(int lane, E element) throws InterruptedException {
+        this.lanes.get(lane).put(element);
+        this.available.release();
+    }
+
+    /**
+     * Removes the element of highest priority, waiting for one if necessary.
+     * @return The element of highest priority.
+     * @throws InterruptedException In case we were interrupted while waiting.
+     */
+    E take() throws InterruptedException {
+        this.available.acquire();
+        return pollHighest();
+    }
+
+    /**
+     * Removes the element of highest priority if there is any. Returns immediately.
+     * @return The element of highest priority, null if all lanes are empty.
+     */
+    E poll() {
+        if(this.available.tryAcquire()) {
+            return pollHighest();
+        }
+        return null;
+    }
+
+    /**
+     * Removes the oldest element of the given lane if there is any. Returns immediately.
+     * @param lane The lane to remove from.
+     * @return The oldest element of the lane, null if the lane is empty.
+     */
+    E pollLane(int lane) {
+        if(!this.available.tryAcquire()) {
+            return null;
+        }
+        E element = this.lanes.get(lane).poll();
+        if(element == null) {
+            this.available.release();
+        }
+        return element;
+    }
+
+    /**
+     * Removes all elements in order of priority and adds them to the given collection.
+     * @param collection The collection to add to.
+     * @return The amount of elements removed.
+     */
+    int drainTo(Collection<? super E> collection) {
+        int drained = 0;
+        E element;
+        while((element = poll()) != null) {
+            collection.add(element);
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * Removes all elements.
+     */
+    void clear() {
+        while(poll() != null) {
+            // Discards the element.
+        }
+    }
+
+    /**
+     * Returns the amount of elements in all lanes.
+     * @return The amount of elements.
+     */
+    int size() {
+        return this.available.availablePermits();
+    }
+
+    /**
+     * Removes the first element of the highest priority lane holding any. Must only be called
+     * after acquiring a permit, which guarantees that there is one.
+     * @return The element of highest priority.
+     */
+    private E pollHighest() {
+        while(true) {
+            for(BlockingQueue<E> lane : this.lanes) {
+                E element = lane.poll();
+                if(element != null) {
+                    return element;
+                }
+            }
+        }
+    }
+}
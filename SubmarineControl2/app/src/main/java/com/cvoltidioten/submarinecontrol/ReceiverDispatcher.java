@@ -0,0 +1,152 @@
+package com.cvoltidioten.submarinecontrol;
+
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers messages to a single receiver on an executor instead of the thread receiving them. The
+ * receiver is notified about one message at a time in order of priority and arrival, so it
+ * behaves as if it had an executor of its own while all receivers share the threads of the given
+ * executor. Messages wait in bounded priority lanes. If a lane is full, the overflow policy
+ * decides whether the dispatching thread waits or a message is dropped. With the BLOCK policy, the
+ * waiting can be done up front by reserving space, such that the message is dispatched later
+ * without blocking, e.g. on the event loop.
+ * @param <M> The type of the messages.
+ */
+abstract class ReceiverDispatcher<M> implements Runnable {
+    private static final String TAG = "ReceiverDispatcher";
+    // The maximum amount of messages delivered before the executor thread is given up for others.
+    private static final int BATCH_SIZE = 16;
+
+    private final String tag;
+    private final Executor executor;
+    private final SubmarineConnector.OverflowPolicy overflowPolicy;
+    private final PriorityLanes<M> queue;
+    // The space left for messages with the BLOCK policy, reserved before a message is queued and
+    // released once it was taken. Bounded by the capacity of a single lane, so no lane overflows.
+    private final Semaphore space;
+    // Whether a delivery run is scheduled on the executor or running.
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * Creates a new dispatcher.
+     * @param tag The unique name of the receiver.
+     * @param executor The executor to deliver on.
+     * @param laneCount The amount of priority lanes.
+     * @param laneCapacity The maximum amount of messages waiting per lane.
+     * @param overflowPolicy What to do if a lane is full.
+     */
+    ReceiverDispatcher(String tag, Executor executor, int laneCount, int laneCapacity,
+                       SubmarineConnector.OverflowPolicy overflowPolicy) {
+        this.tag = tag;
+        this.executor = executor;
+        this.overflowPolicy = overflowPolicy;
+        this.queue = new PriorityLanes<>(laneCount, laneCapacity);
+        this.space = new Semaphore(laneCapacity);
+    }
+
+    /**
+     * Waits until there is space for another message if the policy is BLOCK. The next message is
+     * then dispatched by dispatchReserved() without blocking. Returns right away for the other
+     * policies.
+     * @throws InterruptedException In case we were interrupted while waiting for space.
+     */
+    void reserve() throws InterruptedException {
+        if(this.overflowPolicy == SubmarineConnector.OverflowPolicy.BLOCK) {
+            this.space.acquire();
+        }
+    }
+
+    /**
+     * Gives back the space reserved by reserve() if no message is dispatched after all.
+     */
+    void cancelReservation() {
+        if(this.overflowPolicy == SubmarineConnector.OverflowPolicy.BLOCK) {
+            this.space.release();
+        }
+    }
+
+    /**
+     * Queues the given message for delivery, waiting for space if the policy is BLOCK. Must not be
+     * called concurrently, and never on the event loop.
+     * @param lane The priority lane of the message.
+     * @param message The message to deliver.
+     * @throws InterruptedException In case we were interrupted while waiting for space.
+     */
+    void dispatch(int lane, M message) throws InterruptedException {
+        reserve();
+        dispatchReserved(lane, message);
+    }
+
+    /**
+     * Queues the given message for delivery without blocking. If the policy is BLOCK, space must
+     * have been reserved by reserve() before. Must not be called concurrently.
+     * @param lane The priority lane of the message.
+     * @param message The message to deliver.
+     */
+    void dispatchReserved(int lane, M message) {
+        switch(this.overflowPolicy) {
+            case BLOCK:
+                if(!this.queue.offer(lane, message)) {
+                    // Only happens if no space was reserved.
+                    Log.w(TAG, "Dropping unreserved message for " + this.tag);
+                }
+                break;
+            case DROP_NEWEST:
+                if(!this.queue.offer(lane, message)) {
+                    Log.w(TAG, "Dropping new message for " + this.tag);
+                }
+                break;
+            case DROP_OLDEST:
+                while(!this.queue.offer(lane, message)) {
+                    if(this.queue.pollLane(lane) != null) {
+                        Log.w(TAG, "Dropping old message for " + this.tag);
+                    }
+                }
+                break;
+        }
+        schedule();
+    }
+
+    /**
+     * Delivers the waiting messages. Runs on the executor.
+     */
+    public void run() {
+        try {
+            for(int i = 0; i < BATCH_SIZE; i++) {
+                M message = this.queue.poll();
+                if(message == null) {
+                    break;
+                }
+                if(this.overflowPolicy == SubmarineConnector.OverflowPolicy.BLOCK) {
+                    this.space.release();
+                }
+                try {
+                    deliver(message);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Receiver " + this.tag + " failed", e);
+                }
+            }
+        } finally {
+            this.scheduled.set(false);
+        }
+        if(this.queue.size() > 0) {
+            schedule();
+        }
+    }
+
+    /**
+     * Delivers a single message to the receiver. Runs on the executor.
+     * @param message The message to deliver.
+     */
+    protected abstract void deliver(M message);
+
+    private void schedule() {
+        if(this.scheduled.compareAndSet(false, true)) {
+            this.executor.execute(this);
+        }
+    }
+}
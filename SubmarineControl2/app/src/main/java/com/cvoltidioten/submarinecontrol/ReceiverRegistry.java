@@ -0,0 +1,105 @@
+package com.cvoltidioten.submarinecontrol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A registry of receivers by their tag. Every change replaces the immutable list of entries with a
+ * modified copy using compare-and-set, so changes never lock and the list returned by snapshot()
+ * can be iterated safely while receivers are added or removed concurrently. Entries are kept in
+ * order of registration. A receiver may subscribe to certain message types only.
+ * @param <R> The type of the receivers.
+ */
+class ReceiverRegistry<R> {
+    private final AtomicReference<List<Entry<R>>> entries = new AtomicReference<>(Collections.<Entry<R>>emptyList());
+
+    /**
+     * Registers the given receiver. An existing receiver with the same tag is replaced, keeping
+     * its position.
+     * @param tag The unique name of the receiver.
+     * @param receiver The receiver to register.
+     * @param types The message types the receiver subscribes to, null for all types.
+     */
+    void register(String tag, R receiver, Set<SubmarineProtos.SubmarineMessage.MessageType> types) {
+        Entry<R> entry = new Entry<>(tag, receiver, types);
+        while(true) {
+            List<Entry<R>> current = this.entries.get();
+            List<Entry<R>> updated = new ArrayList<>(current.size() + 1);
+            boolean replaced = false;
+            for(Entry<R> existing : current) {
+                if(existing.tag.equals(tag)) {
+                    updated.add(entry);
+                    replaced = true;
+                } else {
+                    updated.add(existing);
+                }
+            }
+            if(!replaced) {
+                updated.add(entry);
+            }
+            if(this.entries.compareAndSet(current, Collections.unmodifiableList(updated))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the receiver with the given tag.
+     * @param tag The unique name of the receiver.
+     * @return True if a receiver was removed.
+     */
+    boolean remove(String tag) {
+        while(true) {
+            List<Entry<R>> current = this.entries.get();
+            List<Entry<R>> updated = new ArrayList<>(current.size());
+            for(Entry<R> existing : current) {
+                if(!existing.tag.equals(tag)) {
+                    updated.add(existing);
+                }
+            }
+            if(updated.size() == current.size()) {
+                return false;
+            }
+            if(this.entries.compareAndSet(current, Collections.unmodifiableList(updated))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the currently registered receivers. The returned list never changes.
+     * @return The registered receivers in order of registration.
+     */
+    List<Entry<R>> snapshot() {
+        return this.entries.get();
+    }
+
+    /**
+     * A registered receiver.
+     * @param <R> The type of the receiver.
+     */
+    static final class Entry<R> {
+        final String tag;
+        final R receiver;
+        // The message types subscribed to, null for all types.
+        private final Set<SubmarineProtos.SubmarineMessage.MessageType> types;
+
+        private Entry(String tag, R receiver, Set<SubmarineProtos.SubmarineMessage.MessageType> types) {
+            this.tag = tag;
+            this.receiver = receiver;
+            this.types = types;
+        }
+
+        /**
+         * Returns true if the receiver subscribed to messages of the given type.
+         * @param type The type of the message.
+         * @return True iff the receiver wants to receive the message.
+         */
+        boolean accepts(SubmarineProtos.SubmarineMessage.MessageType type) {
+            return this.types == null || this.types.contains(type);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.cvoltidioten.submarinecontrol;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The samples of a dive stored column by column in growable primitive arrays, one per channel.
+ * Compared to one object per sample, this takes a fraction of the memory and lets scans over a
+ * channel run through contiguous memory. Timestamps are unsigned 32 bit values as sent by the
+ * submarine.
+ */
+class SampleColumns implements DiveSamples, Serializable {
+    private static final int INITIAL_CAPACITY = 64;
+    // The size of one sample when packed, four bytes per channel.
+    static final int PACKED_SAMPLE_SIZE = 16;
+
+    private int[] timestamps;
+    private float[] depths;
+    private float[] temperatures;
+    private float[] pressures;
+    // The amount of samples stored.
+    private int size = 0;
+
+    SampleColumns() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Creates empty columns able to hold the given amount of samples before growing.
+     * @param capacity The initial capacity.
+     */
+    SampleColumns(int capacity) {
+        this.timestamps = new int[capacity];
+        this.depths = new float[capacity];
+        this.temperatures = new float[capacity];
+        this.pressures = new float[capacity];
+    }
+
+    /**
+     * Creates columns holding the given samples.
+     * @param data The samples.
+     * @return The columns.
+     */
+    static SampleColumns of(List<SubmarineProtos.Datum> data) {
+        SampleColumns samples = new SampleColumns(data.size());
+        for(SubmarineProtos.Datum datum : data) {
+            samples.add(datum.getTimestamp(), datum.getDepth(), datum.getTemperature(), datum.getPressure());
+        }
+        return samples;
+    }
+
+    /**
+     * Creates columns holding a copy of the given samples.
+     * @param samples The samples.
+     * @return The columns.
+     */
+    static SampleColumns copyOf(DiveSamples samples) {
+        return copyOf(samples, 0, samples.size());
+    }
+
+    /**
+     * Creates columns holding a copy of the given samples in the given range.
+     * @param samples The samples.
+     * @param from The index of the first sample to copy.
+     * @param to The index after the last sample to copy.
+     * @return The columns.
+     */
+    static SampleColumns copyOf(DiveSamples samples, int from, int to) {
+        SampleColumns columns = new SampleColumns(to - from);
+        if(samples instanceof SampleColumns) {
+            columns.addAll((SampleColumns)samples, from, to);
+            return columns;
+        }
+        for(int i = from; i < to; i++) {
+            columns.add((int)samples.getTimestamp(i), samples.getDepth(i), samples.getTemperature(i), samples.getPressure(i));
+        }
+        return columns;
+    }
+
+    /**
+     * Creates columns from samples packed by pack().
+     * @param packed The packed samples.
+     * @return The columns.
+     */
+    static SampleColumns unpack(byte[] packed) {
+        return readFrom(ByteBuffer.wrap(packed).order(ByteOrder.nativeOrder()), packed.length / PACKED_SAMPLE_SIZE);
+    }
+
+    /**
+     * Reads the given amount of samples written by writeTo() from the buffer, using its byte order.
+     * @param buffer The buffer positioned at the first sample, positioned after the last one
+     *               afterwards.
+     * @param count The amount of samples.
+     * @return The columns.
+     */
+    static SampleColumns readFrom(ByteBuffer buffer, int count) {
+        SampleColumns samples = new SampleColumns(count);
+        buffer.asIntBuffer().get(samples.timestamps, 0, count);
+        buffer.position(buffer.position() + 4 * count);
+        buffer.asFloatBuffer().get(samples.depths, 0, count);
+        buffer.position(buffer.position() + 4 * count);
+        buffer.asFloatBuffer().get(samples.temperatures, 0, count);
+        buffer.position(buffer.position() + 4 * count);
+        buffer.asFloatBuffer().get(samples.pressures, 0, count);
+        buffer.position(buffer.position() + 4 * count);
+        samples.size = count;
+        return samples;
+    }
+
+    /**
+     * Packs the samples into one array, channel after channel, such that they can be written and
+     * read in bulk instead of value by value. The array is only meant to be unpacked on the same
+     * device, as it is in native byte order.
+     * @return The packed samples.
+     */
+    byte[] pack() {
+        byte[] packed = new byte[this.size * PACKED_SAMPLE_SIZE];
+        writeTo(ByteBuffer.wrap(packed).order(ByteOrder.nativeOrder()), 0, this.size);
+        return packed;
+    }
+
+    /**
+     * Writes the samples in the given range into the buffer channel after channel, using the byte
+     * order of the buffer.
+     * @param buffer The buffer to write to, positioned after the samples afterwards.
+     * @param from The index of the first sample to write.
+     * @param to The index after the last sample to write.
+     */
+    void writeTo(ByteBuffer buffer, int from, int to) {
+        int count = to - from;
+        buffer.asIntBuffer().put(this.timestamps, from, count);
+        buffer.position(buffer.position() + 4 * count);
+        buffer.asFloatBuffer().put(this.depths, from, count);
+        buffer.position(buffer.position() + 4 * count);
+        buffer.asFloatBuffer().put(this.temperatures, from, count);
+        buffer.position(buffer.position() + 4 * count);
+        buffer.asFloatBuffer().put(this.pressures, from, count);
+        buffer.position(buffer.position() + 4 * count);
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Appends a sample.
+     * @param timestamp The unsigned timestamp of the sample.
+     * @param depth The depth in meters.
+     * @param temperature The temperature in degrees Celsius.
+     * @param pressure The pressure in bar.
+     */
+    void add(int timestamp, float depth, float temperature, float pressure) {
+        ensureCapacity(this.size + 1);
+        this.timestamps[this.size] = timestamp;
+        this.depths[this.size] = depth;
+        this.temperatures[this.size] = temperature;
+        this.pressures[this.size] = pressure;
+        this.size++;
+    }
+
+    /**
+     * Appends all samples of the given columns.
+     * @param other The samples to append.
+     */
+    void addAll(SampleColumns other) {
+        addAll(other, 0);
+    }
+
+    /**
+     * Appends the samples of the given columns starting at the given index.
+     * @param other The samples to append.
+     * @param from The index of the first sample to append.
+     */
+    void addAll(SampleColumns other, int from) {
+        addAll(other, from, other.size);
+    }
+
+    /**
+     * Appends the samples of the given columns in the given range.
+     * @param other The samples to append.
+     * @param from The index of the first sample to append.
+     * @param to The index after the last sample to append.
+     */
+    void addAll(SampleColumns other, int from, int to) {
+        int count = to - from;
+        ensureCapacity(this.size + count);
+        System.arraycopy(other.timestamps, from, this.timestamps, this.size, count);
+        System.arraycopy(other.depths, from, this.depths, this.size, count);
+        System.arraycopy(other.temperatures, from, this.temperatures, this.size, count);
+        System.arraycopy(other.pressures, from, this.pressures, this.size, count);
+        this.size += count;
+    }
+
+    /**
+     * Removes all samples, keeping the capacity.
+     */
+    void clear() {
+        this.size = 0;
+    }
+
+    /**
+     * Makes sure that the given amount of samples fits without growing again.
+     * @param capacity The amount of samples to make room for.
+     */
+    void ensureCapacity(int capacity) {
+        if(capacity <= this.timestamps.length) {
+            return;
+        }
+        int grown = Math.max(capacity, this.timestamps.length + (this.timestamps.length >> 1));
+        this.timestamps = Arrays.copyOf(this.timestamps, grown);
+        this.depths = Arrays.copyOf(this.depths, grown);
+        this.temperatures = Arrays.copyOf(this.temperatures, grown);
+        this.pressures = Arrays.copyOf(this.pressures, grown);
+    }
+
+    @Override
+    public long getTimestamp(int index) {
+        checkIndex(index);
+        return this.timestamps[index] & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public float getDepth(int index) {
+        checkIndex(index);
+        return this.depths[index];
+    }
+
+    @Override
+    public float getTemperature(int index) {
+        checkIndex(index);
+        return this.temperatures[index];
+    }
+
+    @Override
+    public float getPressure(int index) {
+        checkIndex(index);
+        return this.pressures[index];
+    }
+
+    /**
+     * Returns the timestamp of the last sample, -1 if there is none.
+     * @return The timestamp of the last sample.
+     */
+    long getLastTimestamp() {
+        return this.size == 0 ? -1 : getTimestamp(this.size - 1);
+    }
+
+    private void checkIndex(int index) {
+        if(index < 0 || index >= this.size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + this.size);
+        }
+    }
+}
@@ -14,6 +14,8 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 
+import java.io.IOException;
+
 /**
  * Represents the activity which is displayed to the user initially. It allows to connect to the
  * submarine. If the submarine is found, we redirect to the main activity. If not, the user is
@@ -90,7 +92,8 @@ public class StartActivity extends AppCompatActivity implements SubmarineConnect
                 ((DrawerLayout)findViewById(R.id.start_drawer_layout)).closeDrawers();
                 return true;
             case R.id.start_nav_previous_dives:
-                // TODO start new intent to previous dive activity
+                ((DrawerLayout)findViewById(R.id.start_drawer_layout)).closeDrawers();
+                startActivity(new Intent(this, PreviousDivesActivity.class));
                 return true;
             case R.id.start_nav_settings:
                 // TODO start new intent to settings activity
@@ -118,7 +121,20 @@ public class StartActivity extends AppCompatActivity implements SubmarineConnect
             this.submarine.connect();
         } catch(SubmarineBluetoothConnector.HardwareException hwe) {
             Log.v(TAG, "Unable to connect to submarine", hwe);
+            return;
         }
+        final Submarine submarine = this.submarine;
+        DiveStore.open(this, new DiveStore.DiveStoreNotifyable() {
+            @Override
+            public void receiveStore(DiveStore store) {
+                submarine.setDiveStore(store);
+            }
+
+            @Override
+            public void receiveFailure(IOException failure) {
+                Log.e(TAG, "Unable to open the dive store, dives are not kept", failure);
+            }
+        });
     }
 
     /**
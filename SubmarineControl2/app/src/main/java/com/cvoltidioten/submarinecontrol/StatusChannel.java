@@ -0,0 +1,83 @@
+package com.cvoltidioten.submarinecontrol;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Delivers the state of the submarine to receivers, conflating updates a receiver did not keep up
+ * with. A receiver has at most one notification pending on its executor at any time, and a
+ * notification always carries the newest state at the time it runs. Intermediate states published
+ * in between are never delivered.
+ */
+class StatusChannel {
+    // The current state, changed by the owner of the channel.
+    private final AtomicReference<SubmarineState> state;
+    private final ReceiverRegistry<Subscription> subscriptions = new ReceiverRegistry<>();
+
+    /**
+     * Creates a new channel.
+     * @param state The reference to the state the receivers are notified about.
+     */
+    StatusChannel(AtomicReference<SubmarineState> state) {
+        this.state = state;
+    }
+
+    /**
+     * Publishes a change of the state. Every receiver without a pending notification gets one
+     * scheduled. Must be called after each change.
+     */
+    void publish() {
+        for(ReceiverRegistry.Entry<Subscription> entry : this.subscriptions.snapshot()) {
+            entry.receiver.schedule();
+        }
+    }
+
+    /**
+     * Registers a receiver which is notified on the given executor. The receiver is notified about
+     * the current state right away.
+     * @param tag The unique name of the receiver.
+     * @param receiver The receiver to notify.
+     * @param executor The executor to notify the receiver on.
+     */
+    void register(String tag, Submarine.SubmarineStatusNotifyable receiver, Executor executor) {
+        Subscription subscription = new Subscription(receiver, executor);
+        this.subscriptions.register(tag, subscription, null);
+        subscription.schedule();
+    }
+
+    /**
+     * Removes the receiver with the given tag. A notification already pending may still run.
+     * @param tag The unique name of the receiver.
+     */
+    void remove(String tag) {
+        this.subscriptions.remove(tag);
+    }
+
+    /**
+     * The notification of a single receiver.
+     */
+    private class Subscription implements Runnable {
+        private final Submarine.SubmarineStatusNotifyable receiver;
+        private final Executor executor;
+        // Whether a notification is scheduled but did not read the state yet.
+        private final AtomicBoolean pending = new AtomicBoolean(false);
+
+        Subscription(Submarine.SubmarineStatusNotifyable receiver, Executor executor) {
+            this.receiver = receiver;
+            this.executor = executor;
+        }
+
+        void schedule() {
+            if(this.pending.compareAndSet(false, true)) {
+                this.executor.execute(this);
+            }
+        }
+
+        public void run() {
+            // Cleared before reading, such that a state published meanwhile schedules another run.
+            this.pending.set(false);
+            this.receiver.receiveStatus(state.get());
+        }
+    }
+}
@@ -2,8 +2,12 @@ package com.cvoltidioten.submarinecontrol;
 
 import android.util.Log;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Represents the physical submarine. It wraps the connection to the submarine. If the submarine is
@@ -11,17 +15,38 @@ import java.util.List;
  * becomes available again. If you want to be informed about changes in either the submarine's
  * status or any messages we receive, you should implement the corresponding interface and register
  * yourself as a message resp. status receiver.
+ * The state of the submarine is an immutable snapshot which is replaced as a whole on any change,
+ * so it can be read from any thread without locking. Incoming messages, connection changes and
+ * user commands are processed in order as events on the submarine event loop.
  */
-class Submarine implements SubmarineConnector.SubmarineMessageNotifyable, SubmarineConnector.SubmarineConnectionNotifyable {
+class Submarine implements SubmarineConnector.SubmarineMessageNotifyable, SubmarineConnector.SubmarineDataNotifyable,
+        SubmarineConnector.SubmarineConnectionNotifyable {
     private final static String TAG = "Submarine";
     private final static String DEFAULT_NAME = "USS Sea Tiger";
+    // The maximum amount of samples requested at once. The data is downloaded in chunks of this
+    // size, such that a broken connection only costs the chunk currently transferred.
+    protected final static int DATA_CHUNK_SIZE = 1024;
+    // The time to wait for the response to a request.
+    protected final static long REQUEST_TIMEOUT_MS = 5000;
 
-    private String name = "";
-    private SubmarineProtos.Status.StatusType status = SubmarineProtos.Status.StatusType.AVAILABLE;
-    private int batteryPercentage = 100;
-    private List<Dive> previousDives;
-    private SubmarineConnector connection;
-    private boolean automaticReconnect = false;
+    private volatile String name = "";
+    // The current state, replaced using compare-and-set on every change.
+    private final AtomicReference<SubmarineState> state = new AtomicReference<>(SubmarineState.INITIAL);
+    // Notifies the status receivers about the newest state only.
+    private final StatusChannel statusChannel = new StatusChannel(this.state);
+    private final List<Dive> previousDives = new CopyOnWriteArrayList<>();
+    private final SubmarineConnector connection;
+    // Runs the user commands in order with the other events of the submarine.
+    private final SubmarineEventLoop eventLoop = SubmarineEventLoop.getInstance();
+    private volatile boolean automaticReconnect = false;
+    // Keeps the dives and their samples on the storage, null if they are only kept in memory.
+    private volatile DiveStore diveStore;
+    // The download in progress, completed once the last chunk arrived. Only used on the event
+    // loop, null if no download was requested.
+    private SubmarineResponse download;
+    // The dive created for data downloaded without a dive. It is kept in memory only, as nobody
+    // scheduled it. Only used on the event loop, null if there is none.
+    private Dive unstoredDive;
 
     /**
      * Creates a new submarine with the default name.
@@ -38,10 +63,9 @@ class Submarine implements SubmarineConnector.SubmarineMessageNotifyable, Submar
      */
     protected Submarine(String name) throws SubmarineConnector.HardwareException {
         this.name = name;
-        this.previousDives = new ArrayList<>();
         this.connection = new SubmarineBluetoothConnector(this);
+        // The connector delivers any message to its submarine before other receivers see it.
         this.connection.registerConnectionStatusReceiver(TAG, this);
-        this.connection.registerMessageReceiver(TAG, this);
     }
 
     protected String getName() {
@@ -52,16 +76,73 @@ class Submarine implements SubmarineConnector.SubmarineMessageNotifyable, Submar
         this.name = name;
     }
 
+    /**
+     * Returns a consistent snapshot of the current state.
+     * @return The current state.
+     */
+    protected SubmarineState getState() {
+        return this.state.get();
+    }
+
     protected SubmarineProtos.Status.StatusType getStatus() {
-        return status;
+        return this.state.get().getStatus();
     }
 
-    protected void setStatus(SubmarineProtos.Status.StatusType status) {
-        this.status = status;
+    protected void setStatus(final SubmarineProtos.Status.StatusType status) {
+        transition(new SubmarineState.Transition() {
+            @Override
+            public SubmarineState apply(SubmarineState state) {
+                return state.withStatus(status);
+            }
+        });
     }
 
     protected int getBatteryPercentage() {
-        return this.batteryPercentage;
+        return this.state.get().getBatteryPercentage();
+    }
+
+    /**
+     * Sets the store which keeps the dives of this submarine as their data is downloaded. The
+     * downloads are journaled to the journal of the store. If the app was killed while
+     * downloading, the dive downloaded last becomes the current dive unless there is one, such that
+     * the download continues after its last stored sample. Loads that dive, so this is never
+     * called on the UI thread.
+     * @param diveStore The store, null to keep the dives in memory only.
+     */
+    protected void setDiveStore(DiveStore diveStore) {
+        this.diveStore = diveStore;
+        this.connection.setJournal(diveStore == null ? null : diveStore.getJournal());
+        if(diveStore == null) {
+            return;
+        }
+        List<Long> incomplete = diveStore.getIncompleteDiveIds();
+        if(incomplete.isEmpty()) {
+            return;
+        }
+        final Dive dive;
+        try {
+            dive = diveStore.resume(incomplete.get(incomplete.size() - 1));
+        } catch(IOException | InterruptedException e) {
+            Log.e(TAG, "Unable to load the interrupted download", e);
+            return;
+        }
+        if(dive == null) {
+            return;
+        }
+        this.eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                SubmarineState updated = transition(new SubmarineState.Transition() {
+                    @Override
+                    public SubmarineState apply(SubmarineState state) {
+                        return state.getCurrentDive() == null ? state.withCurrentDive(dive) : state;
+                    }
+                });
+                if(updated.getCurrentDive() == dive) {
+                    previousDives.add(dive);
+                }
+            }
+        });
     }
 
     protected List<Dive> getDives() {
@@ -113,6 +194,34 @@ class Submarine implements SubmarineConnector.SubmarineMessageNotifyable, Submar
         this.connection.registerMessageReceiver(tag, receiver);
     }
 
+    /**
+     * Registers a new message receiver which will be informed about incoming messages of the given
+     * types only.
+     * @param tag The unique name of the receiver.
+     * @param receiver The receiving object.
+     * @param overflowPolicy What to do if the receiver falls behind.
+     * @param type The first message type to subscribe to.
+     * @param types Further message types to subscribe to.
+     */
+    protected void registerMessageReceiver(String tag, SubmarineConnector.SubmarineMessageNotifyable receiver,
+                                           SubmarineConnector.OverflowPolicy overflowPolicy,
+                                           SubmarineProtos.SubmarineMessage.MessageType type,
+                                           SubmarineProtos.SubmarineMessage.MessageType... types) {
+        this.connection.registerMessageReceiver(tag, receiver, EnumSet.of(type, types), overflowPolicy);
+    }
+
+    /**
+     * Subscribes to the incoming messages of the given types as a stream with demand signalling.
+     * @param subscriber The subscriber.
+     * @param type The first message type to subscribe to.
+     * @param types Further message types to subscribe to.
+     */
+    protected void subscribe(SubmarineConnector.SubmarineMessageSubscriber subscriber,
+                             SubmarineProtos.SubmarineMessage.MessageType type,
+                             SubmarineProtos.SubmarineMessage.MessageType... types) {
+        this.connection.subscribe(subscriber, EnumSet.of(type, types));
+    }
+
     /**
      * Removes a message receiver which will not be anymore informed about any incoming messages.
      * @param tag The name of the receiver to remove.
@@ -121,6 +230,27 @@ class Submarine implements SubmarineConnector.SubmarineMessageNotifyable, Submar
         this.connection.removeMessageReceiver(tag);
     }
 
+    /**
+     * Registers a new receiver which will be informed about changes of the submarine state on the
+     * given executor. Updates the receiver did not keep up with are dropped, such that it is
+     * notified at most once at a time, always about the newest state. The receiver is notified
+     * about the current state right away.
+     * @param tag The unique name of the receiver.
+     * @param receiver The receiving object.
+     * @param executor The executor to notify the receiver on, e.g. the UI thread.
+     */
+    protected void registerStatusReceiver(String tag, SubmarineStatusNotifyable receiver, Executor executor) {
+        this.statusChannel.register(tag, receiver, executor);
+    }
+
+    /**
+     * Removes a status receiver which will not be anymore informed about status changes.
+     * @param tag The name of the receiver to remove.
+     */
+    protected void removeStatusReceiver(String tag) {
+        this.statusChannel.remove(tag);
+    }
+
     /**
      * Registers a new status receiver which will be informed about any incoming message via the
      * implemented callback method.
@@ -141,42 +271,86 @@ class Submarine implements SubmarineConnector.SubmarineMessageNotifyable, Submar
     }
 
     /**
-     * Issues a dive request to the submarine.
+     * Issues a dive request to the submarine. The request is an event on the event loop, ordered
+     * with any other change of the submarine.
      * @param dive The dive to execute.
      * @return True of the connection allows to send the message, false otherwise.
      */
-    protected boolean dive(Dive dive) {
+    protected boolean dive(final Dive dive) {
         if(connection != null) {
-            dive.setData(null);
-            this.previousDives.add(dive);
-            SubmarineProtos.ControlMessage diveMessage = SubmarineProtos.ControlMessage.newBuilder()
-                    .setType(SubmarineProtos.ControlMessage.MessageType.DIVE)
-                    .setDive(
-                            SubmarineProtos.Dive.newBuilder()
-                                    .setOffsetS(dive.getOffsetS())
-                                    .setDepthM(dive.getDepthM())
-                    )
-                    .build();
-            this.connection.send(diveMessage);
-            this.status = SubmarineProtos.Status.StatusType.DIVE_SCHEDULED;
+            this.eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    dive.setData(null);
+                    previousDives.add(dive);
+                    DiveStore store = diveStore;
+                    if(store != null) {
+                        store.create(dive);
+                    }
+                    SubmarineProtos.ControlMessage diveMessage = SubmarineProtos.ControlMessage.newBuilder()
+                            .setType(SubmarineProtos.ControlMessage.MessageType.DIVE)
+                            .setDive(
+                                    SubmarineProtos.Dive.newBuilder()
+                                            .setOffsetS(dive.getOffsetS())
+                                            .setDepthM(dive.getDepthM())
+                            )
+                            .build();
+                    connection.send(diveMessage);
+                    transition(new SubmarineState.Transition() {
+                        @Override
+                        public SubmarineState apply(SubmarineState state) {
+                            return state.withCurrentDive(dive).withStatus(SubmarineProtos.Status.StatusType.DIVE_SCHEDULED);
+                        }
+                    });
+                }
+            });
             return true;
         } else {
             return false;
         }
     }
 
+    /**
+     * Continues the given dive, which was scheduled before, as the current dive. The data
+     * downloaded from now on is appended to it, starting after its last sample. The change is an
+     * event on the event loop.
+     * @param dive The dive to continue, which is stored already and must be appendable.
+     */
+    protected void resumeDive(final Dive dive) {
+        this.eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(!previousDives.contains(dive)) {
+                    previousDives.add(dive);
+                }
+                transition(new SubmarineState.Transition() {
+                    @Override
+                    public SubmarineState apply(SubmarineState state) {
+                        return state.withCurrentDive(dive);
+                    }
+                });
+            }
+        });
+    }
+
     /**
      * Sends a cancel message to the submarine such that any scheduled dive will not be executed.
+     * Like the dive request, this is an event on the event loop.
      * @return True of the connection allows to send the message, false otherwise.
      */
     protected boolean cancelDive() {
         if(this.connection != null) {
-            this.status = SubmarineProtos.Status.StatusType.AVAILABLE;
-            this.connection.send(
-                    SubmarineProtos.ControlMessage.newBuilder()
-                            .setType(SubmarineProtos.ControlMessage.MessageType.CANCEL_DIVE)
-                            .build()
-            );
+            this.eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    setStatus(SubmarineProtos.Status.StatusType.AVAILABLE);
+                    connection.send(
+                            SubmarineProtos.ControlMessage.newBuilder()
+                                    .setType(SubmarineProtos.ControlMessage.MessageType.CANCEL_DIVE)
+                                    .build()
+                    );
+                }
+            });
             return true;
         } else {
             return false;
@@ -193,34 +367,97 @@ class Submarine implements SubmarineConnector.SubmarineMessageNotifyable, Submar
                 updateStatus(message);
                 break;
             case DATA:
-                updateData(message.getDataList());
+                updateData(message, SampleColumns.of(message.getDataList()));
                 break;
         }
     }
 
     /**
-     * Sends a data update request to the submarine.
+     * Appends the samples of a DATA message to the current dive. The connector delivers DATA
+     * messages this way, with the samples already decoded into columns.
+     * @param message The DATA message without its samples.
+     * @param samples The samples of the message.
+     */
+    public void receiveData(SubmarineProtos.SubmarineMessage message, SampleColumns samples) {
+        updateData(message, samples);
+    }
+
+    /**
+     * Sends a data update request to the submarine. Only the samples missing after the last one
+     * received for the last dive are requested, such that a download interrupted by a lost
+     * connection is resumed where it stopped.
      */
     protected boolean updateData() {
         if(this.connection != null) {
-            this.connection.send(
-                    SubmarineProtos.ControlMessage.newBuilder()
-                            .setType(SubmarineProtos.ControlMessage.MessageType.DATA_REQUEST)
-                            .build()
-            );
+            requestData();
             return true;
         } else {
             return false;
         }
     }
 
+    /**
+     * Downloads the data like updateData() does. The data is requested chunk by chunk, each chunk
+     * being a request of its own. The download replaces any download in progress, which is
+     * cancelled. Like the dive request, this is an event on the event loop.
+     * @return The pending response, completed with the last chunk of data once the dive is
+     * complete, or failed as soon as the request of any chunk failed or timed out.
+     */
+    protected SubmarineResponse requestData() {
+        final SubmarineResponse download = new SubmarineResponse(0, SubmarineProtos.SubmarineMessage.MessageType.DATA);
+        this.eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(Submarine.this.download != null) {
+                    Submarine.this.download.cancel(false);
+                }
+                Submarine.this.download = download;
+                requestChunk();
+            }
+        });
+        return download;
+    }
+
+    /**
+     * Requests the next chunk of data for the download in progress. A failure of the request fails
+     * the download. Runs on the event loop.
+     */
+    private void requestChunk() {
+        Dive currentDive = getOrCreateCurrentDive();
+        DiveStore store = this.diveStore;
+        if(store != null) {
+            // The frames answering the request are journaled as data of this dive. The record is
+            // written on the thread of the journal, ahead of these frames.
+            try {
+                store.getJournal().beginDive(currentDive == this.unstoredDive ? null : currentDive);
+            } catch(IOException e) {
+                Log.e(TAG, "Journaling failed, downloads may be lost if the app is killed", e);
+            }
+        }
+        this.connection.request(buildDataRequest(currentDive), REQUEST_TIMEOUT_MS).addReceiver(new ChunkReceiver(this.download));
+    }
+
+    /**
+     * Builds a request for the chunk of data following the last sample received for the given
+     * dive.
+     * @param dive The dive to download the data of.
+     * @return The data request.
+     */
+    private static SubmarineProtos.ControlMessage buildDataRequest(Dive dive) {
+        SubmarineProtos.ControlMessage.Builder request = SubmarineProtos.ControlMessage.newBuilder()
+                .setType(SubmarineProtos.ControlMessage.MessageType.DATA_REQUEST);
+        SubmarineProtocol.setDataRange(request, dive.getLastTimestamp() + 1, DATA_CHUNK_SIZE);
+        return request.build();
+    }
+
     /**
      * Updates the submarine with the given status update.
      * @param update The update to apply.
      */
     protected void updateStatus(SubmarineProtos.SubmarineMessage update) {
         if(update.getType() == SubmarineProtos.SubmarineMessage.MessageType.STATUS) {
-            switch(update.getStatus().getType()) {
+            final SubmarineProtos.Status status = update.getStatus();
+            switch(status.getType()) {
                 case AVAILABLE:
                     Log.i(TAG, "New status: AVAILABLE");
                     break;
@@ -231,7 +468,33 @@ class Submarine implements SubmarineConnector.SubmarineMessageNotifyable, Submar
                     Log.i(TAG, "New status: DIVING");
                     break;
             }
-            this.status = update.getStatus().getType();
+            transition(new SubmarineState.Transition() {
+                @Override
+                public SubmarineState apply(SubmarineState state) {
+                    SubmarineState updated = state.withStatus(status.getType());
+                    if(status.hasInformations()) {
+                        updated = updated.withBatteryPercentage(Math.round(status.getInformations().getBatteryPercentage()));
+                    }
+                    return updated;
+                }
+            });
+        }
+    }
+
+    /**
+     * Applies the given transition to the current state using compare-and-set, retrying if another
+     * thread changed the state meanwhile. The status receivers are notified about the new state.
+     * @param transition The change to apply.
+     * @return The new state.
+     */
+    private SubmarineState transition(SubmarineState.Transition transition) {
+        while(true) {
+            SubmarineState current = this.state.get();
+            SubmarineState updated = transition.apply(current);
+            if(this.state.compareAndSet(current, updated)) {
+                this.statusChannel.publish();
+                return updated;
+            }
         }
     }
 
@@ -246,26 +509,85 @@ class Submarine implements SubmarineConnector.SubmarineMessageNotifyable, Submar
     }
 
     /**
-     * Sets the given data as the data from the last dive.
-     * @param data The data to set.
+     * Sends a status update request to the submarine. The submarine is updated with the status
+     * before the returned response completes.
+     * @return The pending response carrying the status.
+     */
+    protected SubmarineResponse requestStatus() {
+        SubmarineProtos.ControlMessage message = SubmarineProtos.ControlMessage.newBuilder()
+                .setType(SubmarineProtos.ControlMessage.MessageType.STATUS_REQUEST)
+                .build();
+        return this.connection.request(message, REQUEST_TIMEOUT_MS);
+    }
+
+    /**
+     * Appends the given data to the data from the last dive. Fragmented transfers are reassembled
+     * by the connector, so the given data is always the whole chunk requested. If the chunk was
+     * full, the next one is requested right away. Otherwise, the dive is complete, which completes
+     * the download. Runs on the event loop.
+     * @param message The DATA message carrying the data.
+     * @param data The data to add.
      */
-    private void updateData(List<SubmarineProtos.Datum> data) {
-        // Adds data to last dive if no data is there.
-        if(this.previousDives.size() > 0) {
-            Dive lastDive = this.previousDives.get(this.previousDives.size() - 1);
-            lastDive.setData(data);
+    private void updateData(SubmarineProtos.SubmarineMessage message, SampleColumns data) {
+        Dive lastDive = getOrCreateCurrentDive();
+        DiveStore store = this.diveStore;
+        int added = lastDive.addSamples(data);
+        if(store != null && lastDive != this.unstoredDive) {
+            store.append(lastDive, lastDive.getSamples().size() - added);
+        }
+        // Older firmware ignores the range and sends more than requested, which is all there is.
+        if(added > 0 && data.size() == DATA_CHUNK_SIZE) {
+            requestChunk();
         } else {
-            // Edge case, creates new dive if nothing's there.
-            this.previousDives.add(new Dive(10, 0, data));
+            lastDive.setComplete(true);
+            if(this.download != null) {
+                this.download.complete(new DecodedMessage(message, data));
+                this.download = null;
+            }
+            if(store != null) {
+                // The journal of the download is not needed once the samples are stored.
+                store.checkpoint();
+            }
         }
     }
 
+    /**
+     * Returns the current dive, which is created if data is downloaded without a dive. The created
+     * dive is not stored. Runs on the event loop, which owns this change like any other.
+     * @return The current dive.
+     */
+    private Dive getOrCreateCurrentDive() {
+        Dive currentDive = this.state.get().getCurrentDive();
+        if(currentDive != null) {
+            return currentDive;
+        }
+        // Edge case, creates new dive if nothing's there.
+        final Dive newDive = new Dive(10, 0);
+        SubmarineState updated = transition(new SubmarineState.Transition() {
+            @Override
+            public SubmarineState apply(SubmarineState state) {
+                return state.getCurrentDive() == null ? state.withCurrentDive(newDive) : state;
+            }
+        });
+        if(updated.getCurrentDive() == newDive) {
+            this.previousDives.add(newDive);
+            this.unstoredDive = newDive;
+        }
+        return updated.getCurrentDive();
+    }
+
     /**
      * Called when the connection status changes. If an automatic reconnect was set, we try another
      * connection.
      * @param status The new status of the connection.
      */
-    public void receiveConnectionStatus(boolean status) {
+    public void receiveConnectionStatus(final boolean status) {
+        transition(new SubmarineState.Transition() {
+            @Override
+            public SubmarineState apply(SubmarineState state) {
+                return state.withConnected(status);
+            }
+        });
         String statusString = "";
         if(status) statusString = "online"; else statusString = "offline";
         Log.i(TAG, "Submarine is now " + statusString + ".");
@@ -273,4 +595,40 @@ class Submarine implements SubmarineConnector.SubmarineMessageNotifyable, Submar
             connect(true);
         }
     }
+
+    /**
+     * Fails a download if the request of one of its chunks failed. The chunk itself was added by
+     * updateData() before it completed the request, so its samples are not needed here.
+     */
+    private static class ChunkReceiver implements SubmarineConnector.SubmarineResponseNotifyable,
+            SubmarineConnector.SubmarineDataNotifyable {
+        private final SubmarineResponse download;
+
+        private ChunkReceiver(SubmarineResponse download) {
+            this.download = download;
+        }
+
+        @Override
+        public void receiveData(SubmarineProtos.SubmarineMessage message, SampleColumns samples) {
+        }
+
+        @Override
+        public void receiveResponse(SubmarineProtos.SubmarineMessage message) {
+        }
+
+        @Override
+        public void receiveFailure(Exception failure) {
+            Log.e(TAG, "Data request failed", failure);
+            if(this.download != null) {
+                this.download.fail(failure);
+            }
+        }
+    }
+
+    /**
+     * Should be implemented by any member that wants to receive updates on the submarine status.
+     */
+    interface SubmarineStatusNotifyable {
+        void receiveStatus(SubmarineState state);
+    }
 }
@@ -3,51 +3,103 @@ package com.cvoltidioten.submarinecontrol;
 import android.bluetooth.*;
 import android.util.Log;
 
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Method;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An implementation of the SubmarineConnector via a Bluetooth interface. Note that for using this
  * implementation, a pairing should be done prior and bluetooth should be previously enabled by the
  * calling activity.
+ * The state of the connector is owned by the submarine event loop: connecting, disconnecting,
+ * timeouts, status notifications and the processing of incoming messages by the submarine are
+ * events on the loop. Besides that, a connection only uses a thread blocking on the socket for
+ * connecting and reading, and one blocking on it for writing.
  * Based on the BluetoothChat example on developer.android.com.
  */
 class SubmarineBluetoothConnector extends SubmarineConnector {
     private static final String TAG = "SubmarineBluetoothConn";
     private static final UUID MUUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    // The maximum amount of messages per priority waiting to be sent.
+    private static final int SEND_QUEUE_CAPACITY = 64;
+    // The maximum amount of received messages per priority waiting to be dispatched.
+    private static final int DISPATCH_QUEUE_CAPACITY = 64;
+    // The maximum amount of received messages buffered per stream subscription.
+    private static final int STREAM_BUFFER_CAPACITY = 16;
+    // The time reading waits for a stream subscription with a full buffer before ending it.
+    private static final long STREAM_STALL_TIMEOUT_MS = 2000;
+    // The priorities of outgoing and incoming messages, lower is more urgent.
+    private static final int PRIORITY_COMMAND = 0;
+    private static final int PRIORITY_STATUS = 1;
+    private static final int PRIORITY_DATA = 2;
+    private static final int PRIORITY_COUNT = 3;
+    // Runs the state changes of all connectors, including timeouts and notifications.
+    private static final SubmarineEventLoop EVENT_LOOP = SubmarineEventLoop.getInstance();
+    // Runs the message delivery of all receivers but the submarine.
+    private static final ExecutorService DISPATCH_EXECUTOR = Executors.newCachedThreadPool(createThreadFactory("SubmarineDispatch"));
 
     // The submarine to connect to.
     private Submarine submarine;
+    // Delivers the incoming messages to the submarine, which passes them on to the receivers.
+    private final ReceiverDispatcher<Received> submarineDispatcher;
     // The receivers to notify on connection status updates.
-    private HashMap<String, SubmarineConnectionNotifyable> connectionStatusReceivers = new HashMap<>();
-    // The receivers to notify on message arrivals.
-    private HashMap<String, SubmarineMessageNotifyable> messageReceivers = new HashMap<>();
+    private final ReceiverRegistry<SubmarineConnectionNotifyable> connectionStatusReceivers = new ReceiverRegistry<>();
+    // The receivers to notify on message arrivals. They see a message only after the submarine
+    // itself has processed it.
+    private final ReceiverRegistry<ReceiverDispatcher<DecodedMessage>> messageReceivers = new ReceiverRegistry<>();
+    // Streams the received messages to the subscribers.
+    private final MessagePublisher publisher = new MessagePublisher(DISPATCH_EXECUTOR, STREAM_BUFFER_CAPACITY, STREAM_STALL_TIMEOUT_MS);
     // The bluetooth adapter to work on.
     private BluetoothAdapter bluetoothAdapter;
-    // The concrete bluetooth device to connect to.
+    // The concrete bluetooth device to connect to. Only changed on the event loop.
     private BluetoothDevice device;
-    // The thread that runs during the whole connection and implements read and write.
-    private ConnectedThread connectedThread;
-    // The that runs during the connection buildup.
-    private ConnectThread connectThread;
+    // The thread that runs during the whole connection, from the buildup on. Only changed on the
+    // event loop, but read by senders.
+    private volatile ConnectionThread connectionThread;
     // Whether a connection is currently established.
-    private boolean isConnected = false;
+    private volatile boolean isConnected = false;
+    // The time the connection status has to stay unchanged before receivers are notified.
+    private volatile long connectionStatusDebounceMs = 0;
+    // The connection status notification waiting for the debounce time to pass. Only used on the
+    // event loop.
+    private ScheduledFuture<?> pendingStatusNotification;
+    // The requests waiting for a response.
+    private final PendingRequests pendingRequests = new PendingRequests(EVENT_LOOP);
+    // The journal the DATA frames are appended to before they are dispatched, null if none.
+    private volatile FrameJournal journal;
 
     /**
      * Constructs a new bluetooth connector for the given submarine.
      * @param submarine The submarine to connect to.
      * @throws HardwareException In case the bluetooth adapter is not present or is not enabled.
      */
-    public SubmarineBluetoothConnector(Submarine submarine) throws HardwareException {
+    public SubmarineBluetoothConnector(final Submarine submarine) throws HardwareException {
         this.submarine = submarine;
+        this.submarineDispatcher = new ReceiverDispatcher<Received>(TAG, EVENT_LOOP, PRIORITY_COUNT,
+                DISPATCH_QUEUE_CAPACITY, OverflowPolicy.BLOCK) {
+            @Override
+            protected void deliver(Received received) {
+                DecodedMessage decoded = received.decoded;
+                if(decoded.samples != null) {
+                    submarine.receiveData(decoded.message, decoded.samples);
+                } else {
+                    submarine.receiveMessage(decoded.message);
+                }
+                passOn(received);
+            }
+        };
         this.bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         // Enabling bluetooth should be done in the main activity.
         if (bluetoothAdapter == null || !bluetoothAdapter.isEnabled()) {
@@ -70,9 +122,13 @@ class SubmarineBluetoothConnector extends SubmarineConnector {
                 if(device.getName() != null && device.getName().equals(submarine.getName())) {
                     // Connect
                     Log.i(TAG, "Found paired submarine " + device.getName() + ".");
-                    this.device = device;
-                    this.connectThread = new ConnectThread(device);
-                    this.connectThread.start();
+                    final BluetoothDevice submarineDevice = device;
+                    EVENT_LOOP.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            open(submarineDevice);
+                        }
+                    });
                     return true;
                 }
             }
@@ -82,9 +138,15 @@ class SubmarineBluetoothConnector extends SubmarineConnector {
     }
 
     public boolean send(SubmarineProtos.ControlMessage message) {
-        if(this.connectedThread != null) {
-            Log.v(TAG, "Sending data:\n" + message.toString());
-            this.connectedThread.write(message);
+        ConnectionThread connectionThread = this.connectionThread;
+        if(connectionThread != null) {
+            if(Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "Sending data:\n" + message.toString());
+            }
+            if(!connectionThread.write(message)) {
+                Log.e(TAG, "Send queue is full, dropping message of type " + message.getType());
+                return false;
+            }
             return true;
         } else {
             Log.e(TAG, "Tried to write data but not connected to any device.");
@@ -92,28 +154,100 @@ class SubmarineBluetoothConnector extends SubmarineConnector {
         }
     }
 
-    public boolean disconnect() {
-        if(this.connectThread != null) {
-            connectThread.cancel(false);
-            connectThread.interrupt();
-            this.connectThread = null;
+    public SubmarineResponse request(SubmarineProtos.ControlMessage message, long timeoutMs) {
+        SubmarineResponse response = this.pendingRequests.add(message.getType(), timeoutMs);
+        message = SubmarineProtocol.setRequestId(message.toBuilder(), response.getCorrelationId()).build();
+        if(!send(message)) {
+            response.fail(new IOException("Could not send request of type " + message.getType()));
         }
-        if(this.connectedThread != null) {
-            connectedThread.cancel(false);
-            connectedThread.interrupt();
-            this.connectedThread = null;
+        return response;
+    }
+
+    public boolean disconnect() {
+        EVENT_LOOP.execute(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Starts to connect to the given device. Runs on the event loop.
+     * @param device The device to connect to.
+     */
+    private void open(BluetoothDevice device) {
+        close();
+        this.device = device;
+        this.connectionThread = new ConnectionThread(device);
+        this.connectionThread.start();
+    }
+
+    /**
+     * Closes the current connection without notifying the connection status receivers. Runs on the
+     * event loop.
+     */
+    private void close() {
+        if(this.connectionThread != null) {
+            this.connectionThread.cancel(false);
+            this.connectionThread.interrupt();
+            this.connectionThread = null;
             this.device = null;
         }
-        return true;
     }
 
     public boolean isConnected() {
         return this.isConnected;
     }
 
+    /**
+     * Sets the time the connection status has to stay unchanged before the connection status
+     * receivers are notified. Status changes within this time replace each other, such that only
+     * the settled status is reported. By default, receivers are notified right away.
+     * @param debounceMs The debounce time in milliseconds, 0 to notify right away.
+     */
+    protected void setConnectionStatusDebounce(long debounceMs) {
+        this.connectionStatusDebounceMs = debounceMs;
+    }
+
+    /**
+     * Returns the amount of messages currently waiting to be sent.
+     * @return The amount of queued messages, 0 if not connected.
+     */
+    protected int getSendQueueDepth() {
+        ConnectionThread connectionThread = this.connectionThread;
+        return connectionThread != null ? connectionThread.writer.getQueueDepth() : 0;
+    }
+
+    /**
+     * Returns the moving average of the time a write to the socket took.
+     * @return The average write latency in microseconds, 0 if not connected.
+     */
+    protected long getWriteLatencyUs() {
+        ConnectionThread connectionThread = this.connectionThread;
+        return connectionThread != null ? connectionThread.writer.getWriteLatencyUs() : 0;
+    }
+
     protected void registerMessageReceiver(String tag, SubmarineMessageNotifyable receiver) {
+        registerMessageReceiver(tag, receiver, null, OverflowPolicy.BLOCK);
+    }
+
+    protected void registerMessageReceiver(String tag, final SubmarineMessageNotifyable receiver,
+                                           Set<SubmarineProtos.SubmarineMessage.MessageType> types,
+                                           OverflowPolicy overflowPolicy) {
         Log.i(TAG, "Registered message receiver " + tag);
-        this.messageReceivers.put(tag, receiver);
+        this.messageReceivers.register(tag, new ReceiverDispatcher<DecodedMessage>(tag,
+                DISPATCH_EXECUTOR, PRIORITY_COUNT, DISPATCH_QUEUE_CAPACITY, overflowPolicy) {
+            @Override
+            protected void deliver(DecodedMessage decoded) {
+                if(decoded.samples != null && receiver instanceof SubmarineDataNotifyable) {
+                    ((SubmarineDataNotifyable)receiver).receiveData(decoded.message, decoded.samples);
+                } else {
+                    receiver.receiveMessage(decoded.toMessage());
+                }
+            }
+        }, types);
     }
 
     protected void removeMessageReceiver(String tag) {
@@ -121,9 +255,17 @@ class SubmarineBluetoothConnector extends SubmarineConnector {
         this.messageReceivers.remove(tag);
     }
 
+    protected void subscribe(SubmarineMessageSubscriber subscriber, Set<SubmarineProtos.SubmarineMessage.MessageType> types) {
+        this.publisher.subscribe(subscriber, types);
+    }
+
+    protected void setJournal(FrameJournal journal) {
+        this.journal = journal;
+    }
+
     protected void registerConnectionStatusReceiver(String tag, SubmarineConnectionNotifyable receiver) {
         Log.i(TAG, "Reigstered status receiver " + tag);
-        this.connectionStatusReceivers.put(tag, receiver);
+        this.connectionStatusReceivers.register(tag, receiver, null);
     }
 
     protected void removeConnectionStatusReceiver(String tag) {
@@ -131,154 +273,420 @@ class SubmarineBluetoothConnector extends SubmarineConnector {
         this.connectionStatusReceivers.remove(tag);
     }
 
+    /**
+     * Creates a factory for daemon threads with the given name.
+     * @param name The name of the threads.
+     * @return The thread factory.
+     */
+    private static ThreadFactory createThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Reserves space for a message of the given type with every receiver accepting it. Waits while
+     * a receiver with the BLOCK policy is full, which stops reading from the submarine. Called on
+     * the reading thread, such that passing the message on never blocks the event loop.
+     * @param type The type of the message received.
+     * @return The receivers to pass the message on to.
+     * @throws InterruptedException In case we were interrupted while waiting. No space is reserved
+     * then.
+     */
+    private List<ReceiverDispatcher<DecodedMessage>> reserveReceivers(
+            SubmarineProtos.SubmarineMessage.MessageType type) throws InterruptedException {
+        List<ReceiverDispatcher<DecodedMessage>> receivers = new ArrayList<>();
+        try {
+            for(ReceiverRegistry.Entry<ReceiverDispatcher<DecodedMessage>> entry : this.messageReceivers.snapshot()) {
+                if(entry.accepts(type)) {
+                    entry.receiver.reserve();
+                    receivers.add(entry.receiver);
+                }
+            }
+        } catch (InterruptedException e) {
+            cancelReservations(receivers);
+            throw e;
+        }
+        return receivers;
+    }
+
+    private static void cancelReservations(List<ReceiverDispatcher<DecodedMessage>> receivers) {
+        for(ReceiverDispatcher<DecodedMessage> receiver : receivers) {
+            receiver.cancelReservation();
+        }
+    }
+
+    /**
+     * Passes the given message on to the receivers which reserved space for it and completes the
+     * request it answers. Called on the event loop once the submarine has processed the message,
+     * never blocks.
+     * @param received The message received.
+     */
+    private void passOn(Received received) {
+        SubmarineProtos.SubmarineMessage message = received.decoded.message;
+        int lane = getLane(message.getType());
+        for(ReceiverDispatcher<DecodedMessage> receiver : received.receivers) {
+            receiver.dispatchReserved(lane, received.decoded);
+        }
+        this.pendingRequests.complete(received.decoded);
+    }
+
+    /**
+     * Returns the priority lane of the given outgoing message. Commands such as cancelling a dive
+     * go out before status polling, and status polling goes out before data requests.
+     * @param type The type of the outgoing message.
+     * @return The priority lane of the message.
+     */
+    private static int getLane(SubmarineProtos.ControlMessage.MessageType type) {
+        switch(type) {
+            case DIVE:
+            case CANCEL_DIVE:
+                return PRIORITY_COMMAND;
+            case STATUS_REQUEST:
+                return PRIORITY_STATUS;
+            default:
+                return PRIORITY_DATA;
+        }
+    }
+
+    /**
+     * Returns the priority lane of the given incoming message. Status updates are dispatched
+     * before data, such that they are never stuck behind a large batch of data.
+     * @param type The type of the incoming message.
+     * @return The priority lane of the message.
+     */
+    private static int getLane(SubmarineProtos.SubmarineMessage.MessageType type) {
+        return type == SubmarineProtos.SubmarineMessage.MessageType.STATUS ? PRIORITY_STATUS : PRIORITY_DATA;
+    }
+
     /**
      * Updates the connection status which can be either on- or offline. Notifies any receivers
      * about the connection change and the connection is renewed in case we went offline and the
-     * automatic reconnect was set.
+     * automatic reconnect was set. Receivers are notified on the event loop, right away or once
+     * the debounce time passed without another change.
      * @param newConnectionStatus The new connection status, false means offline, true means online.
      * @param notify Whether to notify the connection status receivers.
      */
-    private void updateConnectionStatus(boolean newConnectionStatus, boolean notify) {
+    private void updateConnectionStatus(final boolean newConnectionStatus, final boolean notify) {
         this.isConnected = newConnectionStatus;
         if(notify) {
-            new Timer().schedule(new TimerTask() {
+            EVENT_LOOP.execute(new Runnable() {
                 @Override
                 public void run() {
-                    for(Map.Entry<String, SubmarineConnectionNotifyable> entry : connectionStatusReceivers.entrySet()) {
-                        Log.i(TAG, "Notifying connection status receiver: " + entry.getKey());
-                        entry.getValue().receiveConnectionStatus(isConnected);
-                    }
+                    scheduleConnectionStatusNotification(newConnectionStatus);
                 }
-            }, 2000);
+            });
+        }
+    }
+
+    /**
+     * Replaces the pending connection status notification by one for the given status. Runs on the
+     * event loop.
+     * @param newConnectionStatus The status to notify about.
+     */
+    private void scheduleConnectionStatusNotification(final boolean newConnectionStatus) {
+        Runnable notification = new Runnable() {
+            @Override
+            public void run() {
+                pendingStatusNotification = null;
+                for(ReceiverRegistry.Entry<SubmarineConnectionNotifyable> entry : connectionStatusReceivers.snapshot()) {
+                    Log.i(TAG, "Notifying connection status receiver: " + entry.tag);
+                    entry.receiver.receiveConnectionStatus(newConnectionStatus);
+                }
+            }
+        };
+        if(this.pendingStatusNotification != null) {
+            this.pendingStatusNotification.cancel(false);
+            this.pendingStatusNotification = null;
+        }
+        long debounceMs = this.connectionStatusDebounceMs;
+        if(debounceMs > 0) {
+            this.pendingStatusNotification = EVENT_LOOP.schedule(notification, debounceMs, TimeUnit.MILLISECONDS);
+        } else {
+            notification.run();
         }
     }
 
     /**
-     * This thread runs once during connection buildup. If everything goes successfully, it creates
-     * a bluetooth socket and directly executes the ConnectedThread where the actual data management
-     * happens.
+     * This thread runs during a connection with a remote device. It builds up the connection and
+     * then reads all incoming transmissions, handing them off to the event loop. Outgoing
+     * transmissions are written by its writer thread.
      */
-    private class ConnectThread extends Thread {
-        private BluetoothSocket socket;
-        private BluetoothDevice device;
+    private class ConnectionThread extends Thread {
+        private final BluetoothDevice device;
+        private volatile BluetoothSocket socket;
+        private volatile boolean active = true;
+        // The framing of this connection. Every connection starts with the legacy framing and
+        // switches to the varint framing once the submarine accepted it.
+        private volatile Framing framing = Framing.LEGACY;
+        private FrameReader reader;
+        // Decodes the samples of DATA messages straight into columns.
+        private final DatumDecoder decoder = new DatumDecoder();
+        // Collects the fragments of data transfers received on this connection.
+        private final DataReassembler reassembler = new DataReassembler();
+        // Sends the outgoing messages of this connection.
+        private final WriterThread writer;
 
-        public ConnectThread(BluetoothDevice device) {
+        public ConnectionThread(BluetoothDevice device) {
             this.device = device;
-            // Gets a BluetoothSocket to connect with the given bluetooth device.
-            try {
-                socket = device.createRfcommSocketToServiceRecord(MUUID);
-            } catch (IOException e) {
-                Log.e(TAG, "Bluetooth socket could not be created", e);
-            }
+            this.writer = new WriterThread(this);
         }
 
         public void run() {
             // Cancels discovery because it will slow down the connection.
             bluetoothAdapter.cancelDiscovery();
+            if(!open()) {
+                cancel();
+                return;
+            }
+            if(!this.active) {
+                // Cancelled while connecting, before the socket could be closed.
+                closeSocket();
+                return;
+            }
+            this.writer.start();
+            // Updates the connection status as this is only called on a working connection.
+            updateConnectionStatus(true, true);
+            // Keeps listening to the input stream while connected.
+            try {
+                this.reader = new FrameReader(socket.getInputStream());
+            } catch (IOException e) {
+                Log.i(TAG, "Disconnected", e);
+                cancel();
+                return;
+            }
+            while(this.active) {
+                try {
+                    this.reader.readFrame();
+                } catch (IOException e1) {
+                    Log.i(TAG, "Disconnected", e1);
+                    cancel();
+                    break;
+                }
+                DecodedMessage decoded;
+                try {
+                    decoded = this.decoder.decode(
+                            this.reader.getBuffer(), this.reader.getFrameOffset(), this.reader.getFrameLength());
+                } catch (InvalidProtocolBufferException e) {
+                    Log.e(TAG, "Dropping malformed message of length " + this.reader.getFrameLength(), e);
+                    continue;
+                }
+                SubmarineProtos.SubmarineMessage message = decoded.message;
+                if(this.framing == Framing.LEGACY
+                        && (SubmarineProtocol.getCapabilities(message) & SubmarineProtocol.CAPABILITY_VARINT_FRAMING) != 0) {
+                    // The submarine frames everything after this message with varints.
+                    Log.i(TAG, "Switching to varint framing");
+                    this.framing = Framing.VARINT;
+                    this.reader.setFraming(Framing.VARINT);
+                }
+                FrameJournal journal = SubmarineBluetoothConnector.this.journal;
+                if(journal != null && message.getType() == SubmarineProtos.SubmarineMessage.MessageType.DATA) {
+                    try {
+                        journal.appendFrame(this.reader.getBuffer(), this.reader.getFrameOffset(), this.reader.getFrameLength());
+                    } catch (IOException e) {
+                        Log.e(TAG, "Journaling failed, downloads may be lost if the app is killed", e);
+                    }
+                }
+                if(message.getType() == SubmarineProtos.SubmarineMessage.MessageType.DATA
+                        && SubmarineProtocol.isFragment(message)) {
+                    // Delivers the data only once the whole transfer arrived.
+                    decoded = this.reassembler.add(decoded);
+                    if(decoded == null) {
+                        continue;
+                    }
+                    message = decoded.message;
+                }
+                if(Log.isLoggable(TAG, Log.VERBOSE)) {
+                    Log.v(TAG, "Received message:\n" + message.toString()
+                            + (decoded.samples != null ? decoded.samples.size() + " samples" : ""));
+                }
+                try {
+                    // Hands the message off, waiting in case a subscriber, a receiver or the
+                    // submarine falls behind. The event loop never waits.
+                    publisher.publish(decoded);
+                    List<ReceiverDispatcher<DecodedMessage>> receivers = reserveReceivers(message.getType());
+                    try {
+                        submarineDispatcher.dispatch(getLane(message.getType()), new Received(decoded, receivers));
+                    } catch (InterruptedException e) {
+                        cancelReservations(receivers);
+                        throw e;
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Queues the given message for sending. Returns immediately.
+         * @param message The message to send.
+         * @return True if the message was queued, false if the queue is full.
+         */
+        public boolean write(SubmarineProtos.ControlMessage message) {
+            return this.writer.enqueue(message);
+        }
+
+        public void cancel() {
+            this.cancel(true);
+        }
+
+        public void cancel(boolean notify) {
+            this.active = false;
+            this.writer.interrupt();
+            pendingRequests.failAll(new IOException("Connection closed"));
+            closeSocket();
+            updateConnectionStatus(false, notify);
+        }
 
+        /**
+         * Connects the socket to the device. This will block.
+         * @return True if the connection was established.
+         */
+        private boolean open() {
             try {
-                // Connects the device through the socket. This will block.
-                socket.connect();
-                Log.i(TAG, "Successfully connected to " + device.getName());
-                connectedThread = new ConnectedThread(socket);
-                connectedThread.start();
+                this.socket = this.device.createRfcommSocketToServiceRecord(MUUID);
+                this.socket.connect();
             } catch (IOException connectException) {
                 Log.e(TAG, "Exception during connection buildup", connectException);
                 try {
-                    socket.close();
+                    closeSocket();
                     Class<?> deviceClass = this.device.getClass();
                     Class<?>[] paramTypes = new Class<?>[] {Integer.TYPE};
                     Method m = deviceClass.getMethod("createRfcommSocket", paramTypes);
                     Object[] params = new Object[] {Integer.valueOf(1)};
-                    socket = (BluetoothSocket) m.invoke(device, params);
-                    socket.connect();
-                    Log.i(TAG, "Successfully connected to " + device.getName());
-                    connectedThread = new ConnectedThread(socket);
-                    connectedThread.start();
+                    this.socket = (BluetoothSocket) m.invoke(this.device, params);
+                    this.socket.connect();
                 } catch (Exception e) {
                     Log.e(TAG, "Exception during fallback connection buildup", e);
-                    cancel();
+                    return false;
                 }
             }
+            Log.i(TAG, "Successfully connected to " + this.device.getName());
+            return true;
         }
 
-        public void cancel() {
-            this.cancel(true);
-        }
-
-        public void cancel(boolean notify) {
+        private void closeSocket() {
+            BluetoothSocket socket = this.socket;
+            if(socket == null) {
+                return;
+            }
             try {
                 socket.close();
             } catch (IOException e) {
-                Log.e(TAG, "Closing during connection buildup failed", e);
+                Log.e(TAG, "Regular closing failed", e);
             }
-            updateConnectionStatus(false, notify);
         }
     }
 
     /**
-     * This thread runs during a connection with a remote device. It handles all incoming and
-     * outgoing transmissions.
+     * A message received, together with the receivers which reserved space for it.
      */
-    private class ConnectedThread extends Thread {
-        private BluetoothSocket socket;
-        private volatile boolean active = true;
+    private static class Received {
+        private final DecodedMessage decoded;
+        private final List<ReceiverDispatcher<DecodedMessage>> receivers;
+
+        private Received(DecodedMessage decoded, List<ReceiverDispatcher<DecodedMessage>> receivers) {
+            this.decoded = decoded;
+            this.receivers = receivers;
+        }
+    }
+
+    /**
+     * This thread sends the outgoing messages of a connection, such that no caller ever blocks on
+     * the socket. Messages are taken from bounded queues by priority. All messages queued at the
+     * time of writing are encoded into one reusable buffer and written to the socket at once, the
+     * most urgent ones first.
+     */
+    private class WriterThread extends Thread {
+        private final ConnectionThread connection;
+        private final PriorityLanes<SubmarineProtos.ControlMessage> queue = new PriorityLanes<>(PRIORITY_COUNT, SEND_QUEUE_CAPACITY);
+        // The messages written by the current write.
+        private final List<SubmarineProtos.ControlMessage> batch = new ArrayList<>();
+        // The encoded frames of the current write.
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        // The moving average of the write latency.
+        private volatile long writeLatencyUs = 0;
+
+        public WriterThread(ConnectionThread connection) {
+            this.connection = connection;
+        }
+
+        public boolean enqueue(SubmarineProtos.ControlMessage message) {
+            return this.queue.offer(getLane(message.getType()), message);
+        }
 
-        public ConnectedThread(BluetoothSocket socket) {
-            this.socket = socket;
+        public int getQueueDepth() {
+            return this.queue.size();
+        }
+
+        public long getWriteLatencyUs() {
+            return this.writeLatencyUs;
         }
 
         public void run() {
-            // Updates the connection status as this is only called on a working connection.
-            updateConnectionStatus(true, true);
-            // Keeps listening to the input stream while connected.
-            while(this.active) {
+            OutputStream outputStream;
+            try {
+                outputStream = this.connection.socket.getOutputStream();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception during write", e);
+                this.connection.cancel();
+                return;
+            }
+            while(this.connection.active) {
                 try {
-                    Log.i(TAG, "Reading data...");
-                    int length = socket.getInputStream().read() & 0xFF;
-                    Log.i(TAG, "Got message length " + length);
-                    byte byteMessage[] = new byte[length];
-                    for(int i = 0; i < length; i++) {
-                        byteMessage[i] = (byte)socket.getInputStream().read();
-                    }
-                    Log.i(TAG, "Got byte message " + Arrays.toString(byteMessage));
-                    SubmarineProtos.SubmarineMessage message = SubmarineProtos.SubmarineMessage.parseFrom(byteMessage);
-                    // Notifies receivers
-                    for(Map.Entry<String, SubmarineMessageNotifyable> entry : messageReceivers.entrySet()) {
-                        Log.i(TAG, "Notifying message receiver: " + entry.getKey());
-                        entry.getValue().receiveMessage(message);
+                    this.batch.add(this.queue.take());
+                } catch (InterruptedException e) {
+                    break;
+                }
+                this.queue.drainTo(this.batch);
+                this.buffer.reset();
+                for(SubmarineProtos.ControlMessage message : this.batch) {
+                    encode(message);
+                }
+                this.batch.clear();
+                try {
+                    long start = System.nanoTime();
+                    this.buffer.writeTo(outputStream);
+                    outputStream.flush();
+                    long latencyUs = (System.nanoTime() - start) / 1000;
+                    this.writeLatencyUs = this.writeLatencyUs == 0 ? latencyUs : (7 * this.writeLatencyUs + latencyUs) / 8;
+                } catch (IOException e) {
+                    Log.e(TAG, "Exception during write", e);
+                    // The reader notices the broken socket as well, unless it was closed already.
+                    if(this.connection.active) {
+                        this.connection.cancel();
                     }
-                    Log.i(TAG, "Received message:\n" + message.toString());
-                } catch (IOException e1) {
-                    Log.i(TAG, "Disconnected", e1);
-                    cancel();
                     break;
                 }
+                if(Log.isLoggable(TAG, Log.VERBOSE)) {
+                    Log.v(TAG, "Wrote " + this.buffer.size() + " bytes, queue depth " + getQueueDepth()
+                            + ", average write latency " + this.writeLatencyUs + " us");
+                }
             }
         }
 
-        public void write(SubmarineProtos.ControlMessage message) {
-            try {
-                // Supporting only messages with size up to 255 bytes.
-                socket.getOutputStream().write((byte)message.getSerializedSize());
-                message.writeTo(socket.getOutputStream());
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+        /**
+         * Appends the given message including its frame header to the buffer.
+         * @param message The message to encode.
+         */
+        private void encode(SubmarineProtos.ControlMessage message) {
+            Framing framing = this.connection.framing;
+            if(framing == Framing.LEGACY) {
+                // Offers the varint framing and fragmented data until the submarine accepts them.
+                // Older firmware ignores this and keeps using the legacy framing.
+                message = SubmarineProtocol.setCapabilities(message.toBuilder(),
+                        SubmarineProtocol.CAPABILITY_VARINT_FRAMING | SubmarineProtocol.CAPABILITY_FRAGMENTED_DATA).build();
             }
-        }
-
-        public void cancel() {
-            this.cancel(true);
-        }
-
-        public void cancel(boolean notify) {
-            this.active = false;
             try {
-                socket.close();
+                framing.writeFrame(message, this.buffer);
             } catch (IOException e) {
-                Log.e(TAG, "Regular closing failed", e);
+                Log.e(TAG, "Dropping message of type " + message.getType(), e);
             }
-            updateConnectionStatus(false, notify);
         }
     }
 
@@ -295,7 +703,7 @@ class SubmarineBluetoothConnector extends SubmarineConnector {
      BluetoothDevice foundDevice = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
      if(foundDevice.getName().equals(submarine.getName())) {
      device = foundDevice;
-     new ConnectThread(device).start();
+     new ConnectionThread(device).start();
      }
      }
      }
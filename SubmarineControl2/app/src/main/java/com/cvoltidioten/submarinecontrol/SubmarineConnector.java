@@ -1,5 +1,7 @@
 package com.cvoltidioten.submarinecontrol;
 
+import java.util.Set;
+
 abstract class SubmarineConnector {
     /**
      * Connects to the submarine if the connection can be established. Returns true if the
@@ -31,18 +33,62 @@ abstract class SubmarineConnector {
      */
     abstract protected boolean send(SubmarineProtos.ControlMessage message);
 
+    /**
+     * Sends the given request to the submarine and returns the pending response. Returns
+     * immediately and does not wait for the response. Several requests may be pending at once.
+     * @param message The request to send.
+     * @param timeoutMs The time after which the response fails if the submarine did not answer.
+     * @return The pending response, which fails right away if the request could not be sent.
+     * @throws IllegalArgumentException In case the submarine does not answer this type of message.
+     */
+    abstract protected SubmarineResponse request(SubmarineProtos.ControlMessage message, long timeoutMs);
+
     /**
      * Registers a new receiver which is notified on arrival of any message of the submarine.
      * @param receiver The receiver to register.
      */
     abstract protected void registerMessageReceiver(String tag, SubmarineMessageNotifyable receiver);
 
+    /**
+     * Registers a new receiver which is notified on arrival of messages of the given types only.
+     * Registering is safe from any thread, also while messages are delivered. Every receiver is
+     * notified on a thread of its own, one message at a time, in order of arrival except that
+     * status messages overtake waiting data messages. A receiver which also implements
+     * SubmarineDataNotifyable gets DATA messages through receiveData(), with their samples decoded
+     * into columns. Any other receiver gets them through receiveMessage() as sent by the submarine.
+     * @param receiver The receiver to register.
+     * @param types The message types to notify the receiver about, null for all types.
+     * @param overflowPolicy What to do if the receiver falls behind and its queue is full.
+     */
+    abstract protected void registerMessageReceiver(String tag, SubmarineMessageNotifyable receiver,
+                                                    Set<SubmarineProtos.SubmarineMessage.MessageType> types,
+                                                    OverflowPolicy overflowPolicy);
+
     /**
      * Removes an existing receiver.
      * @param tag The receiver to remove.
      */
     abstract protected void removeMessageReceiver(String tag);
 
+    /**
+     * Subscribes to the incoming messages of the given types as a stream with demand signalling.
+     * The subscriber gets only as many messages as it requested. While it falls behind, the
+     * connection stops reading from the submarine, which holds up all other subscribers and
+     * receivers, too. A subscriber which does not request further messages within a few seconds
+     * is considered stalled; its subscription ends with a TimeoutException passed to onError().
+     * Subscribers see messages as they arrive, possibly before the submarine processed them. The
+     * samples of DATA messages come decoded into columns.
+     * @param subscriber The subscriber.
+     * @param types The message types to subscribe to, null for all types.
+     */
+    abstract protected void subscribe(SubmarineMessageSubscriber subscriber, Set<SubmarineProtos.SubmarineMessage.MessageType> types);
+
+    /**
+     * Sets the journal every valid DATA frame is appended to before it is dispatched.
+     * @param journal The journal, null to journal nothing.
+     */
+    abstract protected void setJournal(FrameJournal journal);
+
     /**
      * Registers a new connection status receiver which is notified on any connection status change.
      * @param receiver The receiver to register.
@@ -62,6 +108,15 @@ abstract class SubmarineConnector {
         void receiveMessage(SubmarineProtos.SubmarineMessage message);
     }
 
+    /**
+     * Should be implemented by any member that wants to receive the samples of DATA messages. The
+     * message comes without its data, which is decoded into the given columns instead. The columns
+     * are shared with other receivers and must not be changed.
+     */
+    interface SubmarineDataNotifyable {
+        void receiveData(SubmarineProtos.SubmarineMessage message, SampleColumns samples);
+    }
+
     /**
      * Should be implemented by any member that wants to receive updates on the submarine connection
      * status.
@@ -70,6 +125,65 @@ abstract class SubmarineConnector {
         void receiveConnectionStatus(boolean status);
     }
 
+    /**
+     * Should be implemented by any member that wants to be notified about the response to a
+     * request.
+     */
+    interface SubmarineResponseNotifyable {
+        void receiveResponse(SubmarineProtos.SubmarineMessage message);
+
+        void receiveFailure(Exception failure);
+    }
+
+    /**
+     * Should be implemented by any member that wants to consume the incoming messages as a stream.
+     * The methods are called serially, onSubscribe() first. The stream outlives single connections
+     * and never completes; onError() is only called if the subscriber broke the rules, e.g. by
+     * requesting a non-positive amount of messages or by stalling, and ends the subscription.
+     */
+    interface SubmarineMessageSubscriber {
+        void onSubscribe(MessageSubscription subscription);
+
+        /**
+         * Is called with the next message. The samples of a DATA message are decoded into the
+         * columns of the given message and must not be changed; use toMessage() to get them as
+         * data of the message.
+         * @param message The message received.
+         */
+        void onNext(DecodedMessage message);
+
+        void onError(Throwable error);
+    }
+
+    /**
+     * The link between a stream of messages and its subscriber.
+     */
+    interface MessageSubscription {
+        /**
+         * Requests further messages. Demand adds up and may be signalled from any thread.
+         * @param n The amount of further messages the subscriber is ready for.
+         */
+        void request(long n);
+
+        /**
+         * Ends the subscription. Messages already on their way may still be delivered.
+         */
+        void cancel();
+    }
+
+    /**
+     * Decides what happens to a message for a receiver whose queue is full.
+     */
+    enum OverflowPolicy {
+        // The connection waits until the receiver caught up, which stops reading from the
+        // submarine. The event loop never waits for a receiver. No message is lost.
+        BLOCK,
+        // The new message is dropped.
+        DROP_NEWEST,
+        // The oldest waiting message of the same priority is dropped.
+        DROP_OLDEST
+    }
+
     /**
      * Is thrown in case the necessary hardware for the connection is not available.
      */
@@ -0,0 +1,36 @@
+package com.cvoltidioten.submarinecontrol;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The event loop owning the state of the submarine and its connection. Connecting, disconnecting,
+ * message arrival, timeouts and user commands are all events run one after another on its single
+ * thread, so the state they change needs no locking. Events must never block; blocking I/O is left
+ * to the connection threads, which post their results as events.
+ */
+final class SubmarineEventLoop extends ScheduledThreadPoolExecutor {
+    private static final SubmarineEventLoop INSTANCE = new SubmarineEventLoop();
+
+    private SubmarineEventLoop() {
+        super(1);
+        setThreadFactory(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SubmarineEventLoop");
+                // Never keeps the process alive.
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Returns the event loop shared by all submarines.
+     * @return The event loop.
+     */
+    static SubmarineEventLoop getInstance() {
+        return INSTANCE;
+    }
+}
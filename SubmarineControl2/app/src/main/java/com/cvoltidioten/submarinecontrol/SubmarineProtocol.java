@@ -0,0 +1,175 @@
+package com.cvoltidioten.submarinecontrol;
+
+import com.google.protobuf.GeneratedMessage;
+import com.google.protobuf.UnknownFieldSet;
+
+import java.util.List;
+
+/**
+ * Protocol additions which are not part of the generated SubmarineProtos yet. They are carried as
+ * unknown fields with reserved field numbers, such that older firmware simply ignores them and the
+ * generated code keeps them untouched. Move them into submarine.proto of the submarine-protobuf
+ * project once the firmware supports them.
+ */
+final class SubmarineProtocol {
+    // ControlMessage: The capabilities offered by the app. SubmarineMessage: The capabilities the
+    // submarine accepted. Both are bit masks of the CAPABILITY_ constants.
+    static final int CAPABILITIES_FIELD_NUMBER = 100;
+    // SubmarineMessage of type DATA: The id of the transfer this fragment belongs to.
+    static final int TRANSFER_ID_FIELD_NUMBER = 101;
+    // SubmarineMessage of type DATA: The zero-based index of this fragment inside its transfer.
+    static final int FRAGMENT_INDEX_FIELD_NUMBER = 102;
+    // SubmarineMessage of type DATA: The total amount of fragments of the transfer.
+    static final int FRAGMENT_COUNT_FIELD_NUMBER = 103;
+    // ControlMessage of type DATA_REQUEST: Only samples with at least this timestamp are requested.
+    static final int DATA_START_FIELD_NUMBER = 104;
+    // ControlMessage of type DATA_REQUEST: The maximum amount of samples to send.
+    static final int DATA_MAX_COUNT_FIELD_NUMBER = 105;
+    // ControlMessage: The id of the request, if a response is expected. SubmarineMessage: The id
+    // of the request this message answers, echoed by the submarine.
+    static final int REQUEST_ID_FIELD_NUMBER = 106;
+
+    // Frames following the accepting message are framed with Framing.VARINT.
+    static final int CAPABILITY_VARINT_FRAMING = 0x01;
+    // The data of a dive may be split into several DATA messages carrying fragment information.
+    static final int CAPABILITY_FRAGMENTED_DATA = 0x02;
+
+    private SubmarineProtocol() {
+    }
+
+    /**
+     * Returns the capabilities the submarine accepted with the given message.
+     * @param message The message received from the submarine.
+     * @return The bit mask of accepted capabilities, 0 if none.
+     */
+    static int getCapabilities(SubmarineProtos.SubmarineMessage message) {
+        return (int)getVarint(message.getUnknownFields(), CAPABILITIES_FIELD_NUMBER, 0);
+    }
+
+    /**
+     * Offers the given capabilities to the submarine with the given message.
+     * @param builder The message to add the capabilities to.
+     * @param capabilities The bit mask of capabilities to offer.
+     * @return The given builder.
+     */
+    static SubmarineProtos.ControlMessage.Builder setCapabilities(SubmarineProtos.ControlMessage.Builder builder, int capabilities) {
+        setVarint(builder, CAPABILITIES_FIELD_NUMBER, capabilities);
+        return builder;
+    }
+
+    /**
+     * Returns true if the given message is a fragment of a larger data transfer.
+     * @param message The message received from the submarine.
+     * @return True iff the message carries fragment information.
+     */
+    static boolean isFragment(SubmarineProtos.SubmarineMessage message) {
+        return message.getUnknownFields().hasField(TRANSFER_ID_FIELD_NUMBER);
+    }
+
+    /**
+     * Returns the id of the transfer the given fragment belongs to.
+     * @param message The fragment received from the submarine.
+     * @return The id of the transfer, 0 if the message is no fragment.
+     */
+    static long getTransferId(SubmarineProtos.SubmarineMessage message) {
+        return getVarint(message.getUnknownFields(), TRANSFER_ID_FIELD_NUMBER, 0);
+    }
+
+    /**
+     * Returns the position of the given fragment inside its transfer.
+     * @param message The fragment received from the submarine.
+     * @return The zero-based index of the fragment, 0 if the message is no fragment.
+     */
+    static int getFragmentIndex(SubmarineProtos.SubmarineMessage message) {
+        return (int)getVarint(message.getUnknownFields(), FRAGMENT_INDEX_FIELD_NUMBER, 0);
+    }
+
+    /**
+     * Returns the amount of fragments of the transfer the given fragment belongs to.
+     * @param message The fragment received from the submarine.
+     * @return The amount of fragments, 1 if the message is no fragment.
+     */
+    static int getFragmentCount(SubmarineProtos.SubmarineMessage message) {
+        return (int)getVarint(message.getUnknownFields(), FRAGMENT_COUNT_FIELD_NUMBER, 1);
+    }
+
+    /**
+     * Removes any fragment information from the given message.
+     * @param builder The message to modify.
+     * @return The given builder.
+     */
+    static SubmarineProtos.SubmarineMessage.Builder clearFragment(SubmarineProtos.SubmarineMessage.Builder builder) {
+        builder.setUnknownFields(
+                UnknownFieldSet.newBuilder(builder.getUnknownFields())
+                        .clearField(TRANSFER_ID_FIELD_NUMBER)
+                        .clearField(FRAGMENT_INDEX_FIELD_NUMBER)
+                        .clearField(FRAGMENT_COUNT_FIELD_NUMBER)
+                        .build()
+        );
+        return builder;
+    }
+
+    /**
+     * Restricts the given data request to the given range of samples. Older firmware ignores the
+     * range and sends all data.
+     * @param builder The DATA_REQUEST message to modify.
+     * @param startTimestamp The timestamp of the first sample to send.
+     * @param maxCount The maximum amount of samples to send.
+     * @return The given builder.
+     */
+    static SubmarineProtos.ControlMessage.Builder setDataRange(SubmarineProtos.ControlMessage.Builder builder, long startTimestamp, int maxCount) {
+        setVarint(builder, DATA_START_FIELD_NUMBER, startTimestamp);
+        setVarint(builder, DATA_MAX_COUNT_FIELD_NUMBER, maxCount);
+        return builder;
+    }
+
+    /**
+     * Returns the id of the request the given message answers.
+     * @param message The message received from the submarine.
+     * @return The id of the request, 0 if the submarine did not echo any.
+     */
+    static long getRequestId(SubmarineProtos.SubmarineMessage message) {
+        return getVarint(message.getUnknownFields(), REQUEST_ID_FIELD_NUMBER, 0);
+    }
+
+    /**
+     * Sets the id the submarine echoes in its response to the given request.
+     * @param builder The request to modify.
+     * @param requestId The id of the request, must not be 0.
+     * @return The given builder.
+     */
+    static SubmarineProtos.ControlMessage.Builder setRequestId(SubmarineProtos.ControlMessage.Builder builder, long requestId) {
+        setVarint(builder, REQUEST_ID_FIELD_NUMBER, requestId);
+        return builder;
+    }
+
+    /**
+     * Returns the last value of the given varint field.
+     * @param fields The unknown fields of a message.
+     * @param number The number of the field.
+     * @param defaultValue The value to return if the field is not present.
+     * @return The value of the field.
+     */
+    static long getVarint(UnknownFieldSet fields, int number, long defaultValue) {
+        if(!fields.hasField(number)) {
+            return defaultValue;
+        }
+        List<Long> values = fields.getField(number).getVarintList();
+        return values.isEmpty() ? defaultValue : values.get(values.size() - 1);
+    }
+
+    /**
+     * Sets the given varint field, replacing any previous value.
+     * @param builder The message builder to modify.
+     * @param number The number of the field.
+     * @param value The value to set.
+     */
+    static void setVarint(GeneratedMessage.Builder<?> builder, int number, long value) {
+        builder.setUnknownFields(
+                UnknownFieldSet.newBuilder(builder.getUnknownFields())
+                        .clearField(number)
+                        .addField(number, UnknownFieldSet.Field.newBuilder().addVarint(value).build())
+                        .build()
+        );
+    }
+}
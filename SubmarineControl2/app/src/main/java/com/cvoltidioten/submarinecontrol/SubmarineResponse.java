@@ -0,0 +1,165 @@
+package com.cvoltidioten.submarinecontrol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending response of the submarine to a request. It is completed with the matching message
+ * of the submarine, or fails if the request timed out or the connection was lost. Callers may
+ * either block on get() or register a receiver which is notified on completion. A receiver which
+ * also implements SubmarineDataNotifyable gets a DATA response with its samples decoded into
+ * columns, like a message receiver does.
+ */
+class SubmarineResponse implements Future<SubmarineProtos.SubmarineMessage> {
+    // The id the request and its response are correlated by.
+    private final long correlationId;
+    // The type of message answering the request.
+    private final SubmarineProtos.SubmarineMessage.MessageType responseType;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<SubmarineConnector.SubmarineResponseNotifyable> receivers = new ArrayList<>();
+    private DecodedMessage message;
+    private Exception failure;
+    private boolean cancelled = false;
+    // Called once the response is done, whatever the outcome.
+    private volatile Runnable onDone;
+
+    SubmarineResponse(long correlationId, SubmarineProtos.SubmarineMessage.MessageType responseType) {
+        this.correlationId = correlationId;
+        this.responseType = responseType;
+    }
+
+    long getCorrelationId() {
+        return correlationId;
+    }
+
+    SubmarineProtos.SubmarineMessage.MessageType getResponseType() {
+        return responseType;
+    }
+
+    /**
+     * Registers a receiver which is notified once the response arrived or the request failed. If
+     * this already happened, the receiver is notified right away on the calling thread. Otherwise,
+     * it is notified on the thread completing the response.
+     * @param receiver The receiver to notify.
+     * @return This response.
+     */
+    SubmarineResponse addReceiver(SubmarineConnector.SubmarineResponseNotifyable receiver) {
+        synchronized(this) {
+            if(!isDone()) {
+                this.receivers.add(receiver);
+                return this;
+            }
+        }
+        notifyReceiver(receiver);
+        return this;
+    }
+
+    /**
+     * Completes the response with the given message.
+     * @param message The message answering the request.
+     * @return True if the response was completed, false if it was already done.
+     */
+    boolean complete(DecodedMessage message) {
+        return finish(message, null, false);
+    }
+
+    /**
+     * Fails the response with the given exception.
+     * @param failure The reason of the failure.
+     * @return True if the response failed, false if it was already done.
+     */
+    boolean fail(Exception failure) {
+        return finish(null, failure, false);
+    }
+
+    /**
+     * Sets an action which is run once the response is done, whatever the outcome.
+     * @param onDone The action to run.
+     */
+    void setOnDone(Runnable onDone) {
+        this.onDone = onDone;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(null, new CancellationException(), true);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return this.done.getCount() == 0;
+    }
+
+    @Override
+    public SubmarineProtos.SubmarineMessage get() throws InterruptedException, ExecutionException {
+        this.done.await();
+        return getResult();
+    }
+
+    @Override
+    public SubmarineProtos.SubmarineMessage get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if(!this.done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private synchronized SubmarineProtos.SubmarineMessage getResult() throws ExecutionException {
+        if(this.cancelled) {
+            throw new CancellationException();
+        }
+        if(this.failure != null) {
+            throw new ExecutionException(this.failure);
+        }
+        return this.message.toMessage();
+    }
+
+    private boolean finish(DecodedMessage message, Exception failure, boolean cancelled) {
+        List<SubmarineConnector.SubmarineResponseNotifyable> receivers;
+        synchronized(this) {
+            if(isDone()) {
+                return false;
+            }
+            this.message = message;
+            this.failure = failure;
+            this.cancelled = cancelled;
+            this.done.countDown();
+            receivers = new ArrayList<>(this.receivers);
+            this.receivers.clear();
+        }
+        if(this.onDone != null) {
+            this.onDone.run();
+        }
+        for(SubmarineConnector.SubmarineResponseNotifyable receiver : receivers) {
+            notifyReceiver(receiver);
+        }
+        return true;
+    }
+
+    private void notifyReceiver(SubmarineConnector.SubmarineResponseNotifyable receiver) {
+        DecodedMessage message;
+        Exception failure;
+        synchronized(this) {
+            message = this.message;
+            failure = this.failure;
+        }
+        if(failure == null && message.samples != null && receiver instanceof SubmarineConnector.SubmarineDataNotifyable) {
+            ((SubmarineConnector.SubmarineDataNotifyable)receiver).receiveData(message.message, message.samples);
+        } else if(failure == null) {
+            receiver.receiveResponse(message.toMessage());
+        } else {
+            receiver.receiveFailure(failure);
+        }
+    }
+}
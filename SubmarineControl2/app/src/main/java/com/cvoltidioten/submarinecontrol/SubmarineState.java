@@ -0,0 +1,64 @@
+package com.cvoltidioten.submarinecontrol;
+
+/**
+ * An immutable snapshot of the state of the submarine. Any change creates a new snapshot, such that
+ * readers always see the status, battery, current dive and link state of one and the same moment.
+ */
+final class SubmarineState {
+    // The state of a submarine nothing is known about yet.
+    static final SubmarineState INITIAL = new SubmarineState(SubmarineProtos.Status.StatusType.AVAILABLE, 100, null, false);
+
+    private final SubmarineProtos.Status.StatusType status;
+    private final int batteryPercentage;
+    // The dive executed or scheduled last, null if there is none.
+    private final Dive currentDive;
+    // Whether the submarine is connected.
+    private final boolean connected;
+
+    private SubmarineState(SubmarineProtos.Status.StatusType status, int batteryPercentage, Dive currentDive, boolean connected) {
+        this.status = status;
+        this.batteryPercentage = batteryPercentage;
+        this.currentDive = currentDive;
+        this.connected = connected;
+    }
+
+    SubmarineProtos.Status.StatusType getStatus() {
+        return status;
+    }
+
+    int getBatteryPercentage() {
+        return batteryPercentage;
+    }
+
+    Dive getCurrentDive() {
+        return currentDive;
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    SubmarineState withStatus(SubmarineProtos.Status.StatusType status) {
+        return new SubmarineState(status, this.batteryPercentage, this.currentDive, this.connected);
+    }
+
+    SubmarineState withBatteryPercentage(int batteryPercentage) {
+        return new SubmarineState(this.status, batteryPercentage, this.currentDive, this.connected);
+    }
+
+    SubmarineState withCurrentDive(Dive currentDive) {
+        return new SubmarineState(this.status, this.batteryPercentage, currentDive, this.connected);
+    }
+
+    SubmarineState withConnected(boolean connected) {
+        return new SubmarineState(this.status, this.batteryPercentage, this.currentDive, connected);
+    }
+
+    /**
+     * A change of the state. It may be applied several times in case other changes interfere, so it
+     * must not have side effects.
+     */
+    interface Transition {
+        SubmarineState apply(SubmarineState state);
+    }
+}
@@ -0,0 +1,42 @@
+package com.cvoltidioten.submarinecontrol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DataReassemblerTest {
+    private static DecodedMessage fragment(long transferId, int index, int count) {
+        SubmarineProtos.SubmarineMessage.Builder builder = SubmarineProtos.SubmarineMessage.newBuilder()
+                .setType(SubmarineProtos.SubmarineMessage.MessageType.DATA);
+        SubmarineProtocol.setVarint(builder, SubmarineProtocol.TRANSFER_ID_FIELD_NUMBER, transferId);
+        SubmarineProtocol.setVarint(builder, SubmarineProtocol.FRAGMENT_INDEX_FIELD_NUMBER, index);
+        SubmarineProtocol.setVarint(builder, SubmarineProtocol.FRAGMENT_COUNT_FIELD_NUMBER, count);
+        SampleColumns samples = new SampleColumns();
+        samples.add(index, 1, 2, 3);
+        return new DecodedMessage(builder.build(), samples);
+    }
+
+    @Test
+    public void add_mergesFragmentsInIndexOrder() {
+        DataReassembler reassembler = new DataReassembler();
+        assertNull(reassembler.add(fragment(7, 2, 3)));
+        assertNull(reassembler.add(fragment(7, 0, 3)));
+        assertNull(reassembler.add(fragment(7, 0, 3)));
+        DecodedMessage merged = reassembler.add(fragment(7, 1, 3));
+        assertNotNull(merged);
+        assertFalse(SubmarineProtocol.isFragment(merged.message));
+        assertEquals(3, merged.samples.size());
+        for(int i = 0; i < 3; i++) {
+            assertEquals(i, merged.samples.getTimestamp(i));
+        }
+    }
+
+    @Test
+    public void add_keepsTransfersApart() {
+        DataReassembler reassembler = new DataReassembler();
+        assertNull(reassembler.add(fragment(1, 0, 2)));
+        assertNull(reassembler.add(fragment(2, 0, 2)));
+        assertEquals(2, reassembler.add(fragment(2, 1, 2)).samples.size());
+        assertEquals(2, reassembler.add(fragment(1, 1, 2)).samples.size());
+    }
+}
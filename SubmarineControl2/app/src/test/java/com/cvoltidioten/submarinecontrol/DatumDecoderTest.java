@@ -0,0 +1,67 @@
+package com.cvoltidioten.submarinecontrol;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DatumDecoderTest {
+    @Test
+    public void decode_splitsSamplesFromMessage() throws Exception {
+        SubmarineProtos.SubmarineMessage.Builder builder = SubmarineProtos.SubmarineMessage.newBuilder()
+                .setType(SubmarineProtos.SubmarineMessage.MessageType.DATA);
+        for(int i = 0; i < 500; i++) {
+            builder.addData(SubmarineProtos.Datum.newBuilder().setTimestamp(i).setDepth(i * 0.1f).setTemperature(20 - i).setPressure(1 + i));
+        }
+        SubmarineProtocol.setVarint(builder, SubmarineProtocol.REQUEST_ID_FIELD_NUMBER, 42);
+        SubmarineProtos.SubmarineMessage message = builder.build();
+        byte[] frame = new byte[message.getSerializedSize() + 3];
+        System.arraycopy(message.toByteArray(), 0, frame, 3, message.getSerializedSize());
+
+        DecodedMessage decoded = new DatumDecoder().decode(frame, 3, message.getSerializedSize());
+        assertEquals(message.toBuilder().clearData().build(), decoded.message);
+        assertEquals(42, SubmarineProtocol.getRequestId(decoded.message));
+        assertEquals(500, decoded.samples.size());
+        for(int i = 0; i < 500; i++) {
+            SubmarineProtos.Datum datum = message.getData(i);
+            assertEquals(datum.getTimestamp(), decoded.samples.getTimestamp(i));
+            assertEquals(datum.getDepth(), decoded.samples.getDepth(i), 0);
+            assertEquals(datum.getTemperature(), decoded.samples.getTemperature(i), 0);
+            assertEquals(datum.getPressure(), decoded.samples.getPressure(i), 0);
+        }
+    }
+
+    @Test
+    public void toMessage_restoresSamplesAsData() throws Exception {
+        SubmarineProtos.SubmarineMessage message = SubmarineProtos.SubmarineMessage.newBuilder()
+                .setType(SubmarineProtos.SubmarineMessage.MessageType.DATA)
+                .addData(SubmarineProtos.Datum.newBuilder().setTimestamp(-1).setDepth(2).setTemperature(3).setPressure(4))
+                .addData(SubmarineProtos.Datum.newBuilder().setTimestamp(7).setDepth(5).setTemperature(6).setPressure(7))
+                .build();
+        byte[] frame = message.toByteArray();
+        assertEquals(message, new DatumDecoder().decode(frame, 0, frame.length).toMessage());
+    }
+
+    @Test
+    public void decode_leavesOtherMessagesWithoutSamples() throws Exception {
+        SubmarineProtos.SubmarineMessage message = SubmarineProtos.SubmarineMessage.newBuilder()
+                .setType(SubmarineProtos.SubmarineMessage.MessageType.STATUS)
+                .setStatus(SubmarineProtos.Status.newBuilder().setType(SubmarineProtos.Status.StatusType.DIVING).setMessage("ok"))
+                .build();
+        byte[] frame = message.toByteArray();
+        DecodedMessage decoded = new DatumDecoder().decode(frame, 0, frame.length);
+        assertEquals(message, decoded.message);
+        assertNull(decoded.samples);
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void decode_rejectsTruncatedMessage() throws Exception {
+        SubmarineProtos.SubmarineMessage message = SubmarineProtos.SubmarineMessage.newBuilder()
+                .setType(SubmarineProtos.SubmarineMessage.MessageType.DATA)
+                .addData(SubmarineProtos.Datum.newBuilder().setTimestamp(1).setDepth(2).setTemperature(3).setPressure(4))
+                .build();
+        byte[] frame = message.toByteArray();
+        new DatumDecoder().decode(frame, 0, frame.length - 2);
+    }
+}
@@ -0,0 +1,56 @@
+package com.cvoltidioten.submarinecontrol;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class DiveCatalogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void store(DiveStore store, Dive dive) {
+        store.create(dive);
+        store.append(dive, 0);
+    }
+
+    @Test
+    public void catalog_summarizesDivesNewestFirst() throws Exception {
+        File directory = folder.newFolder();
+        DiveStore store = new DiveStore(directory);
+        store(store, TestDives.linear(2000, 25));
+        store(store, TestDives.linear(3000, 11));
+        store(store, TestDives.linear(1000, 61));
+        store.sync();
+
+        DiveCatalog catalog = store.getCatalog();
+        assertEquals(3, catalog.size());
+        int[] order = catalog.sortByStartingTime();
+        assertEquals(3000, catalog.get(order[0]).getStartingTime().getTime());
+        assertEquals(2000, catalog.get(order[1]).getStartingTime().getTime());
+        DiveCatalog.Summary oldest = catalog.get(order[2]);
+        assertEquals(1000, oldest.getId());
+        assertEquals(61, oldest.getSampleCount());
+        assertEquals(30, oldest.getMaxDepth(), 0.001);
+        assertEquals(20 - 60 * 0.01f, oldest.getMinTemperature(), 0.001);
+        store.close();
+    }
+
+    @Test
+    public void open_rebuildsLostCatalog() throws Exception {
+        File directory = folder.newFolder();
+        DiveStore store = new DiveStore(directory);
+        store(store, TestDives.linear(1000, 61));
+        store.close();
+        assertTrue(new File(directory, "catalog.idx").delete());
+
+        store = new DiveStore(directory);
+        assertEquals(1, store.getCatalog().size());
+        assertEquals(61, store.getCatalog().get(0).getSampleCount());
+        assertEquals(30, store.getCatalog().get(0).getMaxDepth(), 0.001);
+        store.close();
+    }
+}
@@ -0,0 +1,45 @@
+package com.cvoltidioten.submarinecontrol;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class DiveCsvExporterTest {
+    @Test
+    public void export_writesAllChannelsOfAllDives() throws Exception {
+        StringWriter writer = new StringWriter();
+        assertTrue(DiveCsvExporter.export(writer, Arrays.asList(TestDives.linear(1, 2), TestDives.linear(2, 1)), null));
+
+        String[] lines = writer.toString().split("\n");
+        assertEquals(4, lines.length);
+        assertEquals("\"dive\",\"timestamp\",\"depth\",\"temperature\",\"pressure\"", lines[0]);
+        assertEquals("\"1\",\"1\",\"0.5\",\"19.99\",\"2.0\"", lines[2]);
+        assertEquals("\"2\",\"0\",\"0.0\",\"20.0\",\"1.0\"", lines[3]);
+    }
+
+    @Test
+    public void export_stopsBetweenChunksWhenCancelled() throws Exception {
+        final int[] reported = new int[2];
+        DiveCsvExporter.Progress progress = new DiveCsvExporter.Progress() {
+            @Override
+            public void onProgress(int exported, int total) {
+                reported[0] = exported;
+                reported[1] = total;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return reported[0] > 0;
+            }
+        };
+        StringWriter writer = new StringWriter();
+        assertFalse(DiveCsvExporter.export(writer, Arrays.asList(TestDives.linear(1, DiveCsvExporter.CHUNK_SIZE * 3)), progress));
+
+        assertEquals(DiveCsvExporter.CHUNK_SIZE, reported[0]);
+        assertEquals(DiveCsvExporter.CHUNK_SIZE * 3, reported[1]);
+        assertEquals(DiveCsvExporter.CHUNK_SIZE + 1, writer.toString().split("\n").length);
+    }
+}
@@ -0,0 +1,71 @@
+package com.cvoltidioten.submarinecontrol;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DiveFileTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void read_restoresIrregularSamples() throws Exception {
+        Random random = new Random(42);
+        SampleColumns samples = new SampleColumns();
+        long timestamp = 0xFFFFF000L;
+        for(int i = 0; i < 2500; i++) {
+            // Mixes regular steps with gaps of all sizes, up to the end of the timestamp range.
+            timestamp += i % 100 == 0 ? 1 + random.nextInt(100000) : 1 + random.nextInt(3);
+            samples.add((int)Math.min(timestamp, 0xFFFFFFFFL), random.nextFloat() * 50, 20 + random.nextFloat(), i % 7);
+            if(timestamp >= 0xFFFFFFFFL) {
+                break;
+            }
+        }
+        File file = folder.newFile();
+        Dive dive = TestDives.dive(samples);
+        DiveFileWriter.write(new FileOutputStream(file), dive);
+
+        Dive read = DiveFileReader.read(file);
+        assertEquals(dive.getId(), read.getId());
+        assertEquals(30, read.getOffsetS());
+        assertEquals(dive.getStartingTime(), read.getStartingTime());
+        DiveSamples expected = dive.getSamples();
+        assertEquals(expected.size(), read.getSamples().size());
+        for(int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getTimestamp(i), read.getSamples().getTimestamp(i));
+            assertEquals(expected.getDepth(i), read.getSamples().getDepth(i), 0);
+            assertEquals(expected.getTemperature(i), read.getSamples().getTemperature(i), 0);
+            assertEquals(expected.getPressure(i), read.getSamples().getPressure(i), 0);
+        }
+    }
+
+    @Test
+    public void reader_accessesSamplesRandomlyAndCompressesSlowChanges() throws Exception {
+        SampleColumns samples = new SampleColumns();
+        for(int i = 0; i < 10000; i++) {
+            samples.add(1000 + i, (i / 50) * 0.25f, 18.5f - (i / 400) * 0.5f, 1 + (i / 50) * 0.025f);
+        }
+        File file = folder.newFile();
+        DiveFileWriter.write(new FileOutputStream(file), TestDives.dive(samples));
+        assertTrue(file.length() * 10 < samples.size() * SampleColumns.PACKED_SAMPLE_SIZE);
+
+        DiveFileReader reader = new DiveFileReader(file);
+        try {
+            assertEquals(10000, reader.size());
+            for(int i : new int[]{9999, 0, 5000, 1023, 1024}) {
+                assertEquals(1000 + i, reader.getTimestamp(i));
+                assertEquals(samples.getDepth(i), reader.getDepth(i), 0);
+                assertEquals(samples.getTemperature(i), reader.getTemperature(i), 0);
+                assertEquals(samples.getPressure(i), reader.getPressure(i), 0);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
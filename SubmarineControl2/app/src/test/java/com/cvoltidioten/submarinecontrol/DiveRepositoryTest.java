@@ -0,0 +1,34 @@
+package com.cvoltidioten.submarinecontrol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DiveRepositoryTest {
+    @Test
+    public void put_dropsLeastRecentlyUsedDivesOverBudget() {
+        DiveRepository repository = new DiveRepository(2 * 100 * SampleColumns.PACKED_SAMPLE_SIZE);
+        long first = repository.put(TestDives.linear(100));
+        long second = repository.put(TestDives.linear(100));
+        assertNotNull(repository.acquire(first));
+        repository.release(first);
+        long third = repository.put(TestDives.linear(100));
+        assertTrue(repository.contains(first));
+        assertFalse(repository.contains(second));
+        assertTrue(repository.contains(third));
+    }
+
+    @Test
+    public void acquire_keepsDivesInUseOverBudget() {
+        DiveRepository repository = new DiveRepository(100 * SampleColumns.PACKED_SAMPLE_SIZE);
+        long first = repository.put(TestDives.linear(100));
+        Dive held = repository.acquire(first);
+        long second = repository.put(TestDives.linear(100));
+        assertTrue(repository.contains(first));
+        assertTrue(repository.contains(second));
+        repository.release(first);
+        assertFalse(repository.contains(first));
+        assertNull(repository.acquire(first));
+        assertEquals(100, held.getSamples().size());
+    }
+}
@@ -0,0 +1,151 @@
+package com.cvoltidioten.submarinecontrol;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class DiveStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void load_mapsAppendedBlocksAfterReopening() throws Exception {
+        File directory = folder.newFolder();
+        DiveStore store = new DiveStore(directory);
+        Dive dive = new Dive(10, 0);
+        store.create(dive);
+        dive.addSamples(TestDives.samples(0, 100));
+        store.append(dive, 0);
+        dive.addSamples(TestDives.samples(100, 250));
+        store.append(dive, 100);
+        store.close();
+
+        store = new DiveStore(directory);
+        assertEquals(1, store.getDiveIds().size());
+        Dive loaded = store.load(dive.getId());
+        assertEquals(dive.getStartingTime(), loaded.getStartingTime());
+        assertEquals(250, loaded.getSamples().size());
+        for(int i = 0; i < 250; i++) {
+            assertEquals(i, loaded.getSamples().getTimestamp(i));
+            assertEquals(i * 0.5f, loaded.getSamples().getDepth(i), 0);
+            assertEquals(20 - i * 0.01f, loaded.getSamples().getTemperature(i), 0);
+            assertEquals(1 + i, loaded.getSamples().getPressure(i), 0);
+        }
+        store.close();
+    }
+
+    @Test
+    public void load_readsInterleavedDivesSeparately() throws Exception {
+        File directory = folder.newFolder();
+        DiveStore store = new DiveStore(directory);
+        Dive first = new Dive(10, 0);
+        Dive second = new Dive(20, 0);
+        store.create(first);
+        store.create(second);
+        first.addSamples(TestDives.samples(0, 100));
+        store.append(first, 0);
+        second.addSamples(TestDives.samples(1000, 1300));
+        store.append(second, 0);
+        first.addSamples(TestDives.samples(100, 150));
+        store.append(first, 100);
+        store.sync();
+
+        Dive loaded = store.load(first.getId());
+        assertEquals(150, loaded.getSamples().size());
+        for(int i = 0; i < 150; i++) {
+            assertEquals(i, loaded.getSamples().getTimestamp(i));
+            assertEquals(1 + i, loaded.getSamples().getPressure(i), 0);
+        }
+        assertEquals(1000, store.load(second.getId()).getSamples().getTimestamp(0));
+        store.close();
+    }
+
+    @Test
+    public void open_dropsPartlyWrittenRecords() throws Exception {
+        File directory = folder.newFolder();
+        DiveStore store = new DiveStore(directory);
+        Dive dive = new Dive(10, 0);
+        store.create(dive);
+        dive.addSamples(TestDives.samples(0, 10));
+        store.append(dive, 0);
+        store.close();
+        // A crash in the middle of the next block.
+        FileOutputStream segment = new FileOutputStream(new File(directory, "samples.seg"), true);
+        segment.write(new byte[7]);
+        segment.close();
+        FileOutputStream index = new FileOutputStream(new File(directory, "index.dat"), true);
+        index.write(new byte[]{2, 0, 0});
+        index.close();
+
+        store = new DiveStore(directory);
+        assertEquals(10, store.load(dive.getId()).getSamples().size());
+        dive.addSamples(TestDives.samples(10, 20));
+        store.append(dive, 10);
+        store.close();
+        store = new DiveStore(directory);
+        Dive loaded = store.load(dive.getId());
+        assertEquals(20, loaded.getSamples().size());
+        assertEquals(19, loaded.getSamples().getTimestamp(19));
+        store.close();
+    }
+
+    @Test
+    public void create_rejectsStoredId() throws Exception {
+        DiveStore store = new DiveStore(folder.newFolder());
+        Dive dive = new Dive(10, 0);
+        store.create(dive);
+        dive.addSamples(TestDives.samples(0, 10));
+        store.append(dive, 0);
+        store.create(new Dive(dive.getId(), 20, 0, new Date(), new SampleColumns(0)));
+        try {
+            store.sync();
+            fail("The dive was created twice");
+        } catch(IOException e) {
+            // Expected, the stored dive is kept.
+        }
+        Dive loaded = store.load(dive.getId());
+        assertEquals(10, loaded.getDepthM());
+        assertEquals(10, loaded.getSamples().size());
+        store.close();
+    }
+
+    @Test
+    public void open_skipsStoredIds() throws Exception {
+        File directory = folder.newFolder();
+        DiveStore store = new DiveStore(directory);
+        // A dive stored by an earlier run with an id ahead of the ids handed out now.
+        long id = new Dive(10, 0).getId() + 1000;
+        store.create(new Dive(id, 10, 0, new Date(), new SampleColumns(0)));
+        store.close();
+
+        store = new DiveStore(directory);
+        assertTrue(new Dive(10, 0).getId() > id);
+        store.close();
+    }
+
+    @Test
+    public void resume_returnsAppendableDive() throws Exception {
+        DiveStore store = new DiveStore(folder.newFolder());
+        Dive dive = new Dive(10, 0);
+        store.create(dive);
+        dive.addSamples(TestDives.samples(0, 100));
+        store.append(dive, 0);
+
+        Dive resumed = store.resume(dive.getId());
+        assertFalse(resumed.isComplete());
+        assertEquals(99, resumed.getLastTimestamp());
+        resumed.addSamples(TestDives.samples(100, 150));
+        store.append(resumed, 100);
+        store.sync();
+        assertEquals(150, store.load(dive.getId()).getSamples().size());
+        assertNull(store.resume(dive.getId() + 1));
+        store.close();
+    }
+}
@@ -0,0 +1,44 @@
+package com.cvoltidioten.submarinecontrol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DiveTest {
+    private static SampleColumns samples(int... timestamps) {
+        SampleColumns samples = new SampleColumns();
+        for(int timestamp : timestamps) {
+            samples.add(timestamp, timestamp, 20, 1);
+        }
+        return samples;
+    }
+
+    @Test
+    public void addSamples_skipsOverlappingSamples() {
+        Dive dive = new Dive(10, 0);
+        assertEquals(3, dive.addSamples(samples(1, 2, 3)));
+        assertEquals(2, dive.addSamples(samples(2, 3, 4, 4, 3, 5)));
+        DiveSamples stored = dive.getSamples();
+        assertEquals(5, stored.size());
+        for(int i = 0; i < stored.size(); i++) {
+            assertEquals(i + 1, stored.getTimestamp(i));
+        }
+        assertEquals(0, dive.addSamples(samples(5)));
+    }
+
+    @Test
+    public void getFirstChangedIndex_tracksAppendsAndResets() {
+        Dive dive = new Dive(10, 0);
+        dive.addSamples(samples(1, 2));
+        long drawnVersion = dive.getVersion();
+        int drawnCount = dive.getSamples().size();
+        dive.addSamples(samples(1, 2));
+        assertEquals(drawnVersion, dive.getVersion());
+        dive.addSamples(samples(3));
+        assertNotEquals(drawnVersion, dive.getVersion());
+        assertEquals(2, dive.getFirstChangedIndex(drawnVersion, drawnCount));
+        dive.setData(null);
+        assertEquals(0, dive.getFirstChangedIndex(drawnVersion, drawnCount));
+        assertEquals(0, dive.getFirstChangedIndex(dive.getVersion(), 0));
+    }
+}
@@ -0,0 +1,99 @@
+package com.cvoltidioten.submarinecontrol;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FrameJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] dataFrame(int from, int to) {
+        SubmarineProtos.SubmarineMessage.Builder builder = SubmarineProtos.SubmarineMessage.newBuilder()
+                .setType(SubmarineProtos.SubmarineMessage.MessageType.DATA);
+        for(int i = from; i < to; i++) {
+            builder.addData(SubmarineProtos.Datum.newBuilder().setTimestamp(i).setDepth(i).setTemperature(20).setPressure(1));
+        }
+        return builder.build().toByteArray();
+    }
+
+    @Test
+    public void replay_storesJournaledFramesOnOpen() throws Exception {
+        File directory = folder.newFolder();
+        File journalFile = new File(directory, "frames.journal");
+        Dive dive = new Dive(10, 0);
+        FrameJournal journal = new FrameJournal(journalFile);
+        journal.beginDive(dive);
+        byte[] first = dataFrame(0, 100);
+        journal.appendFrame(first, 0, first.length);
+        // Resent by the submarine after a reconnect.
+        byte[] second = dataFrame(50, 150);
+        journal.appendFrame(second, 0, second.length);
+        journal.close();
+        // The app was killed while appending the next frame.
+        FileOutputStream out = new FileOutputStream(journalFile, true);
+        out.write(new byte[]{2, 0, 0, 1, 0});
+        out.close();
+
+        DiveStore store = new DiveStore(directory);
+        Dive stored = store.load(dive.getId());
+        assertEquals(150, stored.getSamples().size());
+        assertEquals(149, stored.getLastTimestamp());
+        assertEquals(0, journalFile.length());
+        store.close();
+    }
+
+    @Test
+    public void replay_reportsInterruptedDownloadForResuming() throws Exception {
+        File directory = folder.newFolder();
+        Dive dive = new Dive(10, 0);
+        FrameJournal journal = new FrameJournal(new File(directory, "frames.journal"));
+        journal.beginDive(dive);
+        byte[] frame = dataFrame(0, 100);
+        journal.appendFrame(frame, 0, frame.length);
+        journal.close();
+
+        DiveStore store = new DiveStore(directory);
+        assertEquals(Arrays.asList(dive.getId()), store.getIncompleteDiveIds());
+        // The download continues after the last replayed sample.
+        Dive resumed = store.resume(dive.getId());
+        assertFalse(resumed.isComplete());
+        assertEquals(99, resumed.getLastTimestamp());
+        resumed.addSamples(TestDives.samples(100, 150));
+        store.append(resumed, 100);
+        store.checkpoint();
+        store.sync();
+        assertTrue(store.getIncompleteDiveIds().isEmpty());
+        store.close();
+
+        store = new DiveStore(directory);
+        assertTrue(store.getIncompleteDiveIds().isEmpty());
+        Dive stored = store.load(dive.getId());
+        assertEquals(150, stored.getSamples().size());
+        assertEquals(149, stored.getLastTimestamp());
+        store.close();
+    }
+
+    @Test
+    public void truncate_keepsRecordsAfterTheMark() throws Exception {
+        File journalFile = folder.newFile();
+        FrameJournal journal = new FrameJournal(journalFile);
+        journal.beginDive(new Dive(10, 0));
+        long mark = journal.mark();
+        byte[] frame = dataFrame(0, 10);
+        journal.appendFrame(frame, 0, frame.length);
+        journal.truncate(mark);
+        journal.sync();
+        assertTrue(journalFile.length() > 0);
+        journal.truncate(journal.mark());
+        journal.sync();
+        assertEquals(0, journalFile.length());
+        journal.close();
+    }
+}
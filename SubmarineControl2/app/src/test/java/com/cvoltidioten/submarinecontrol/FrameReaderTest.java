@@ -0,0 +1,101 @@
+package com.cvoltidioten.submarinecontrol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FrameReaderTest {
+    /**
+     * Returns at most the given amount of bytes per read, like a slow RFCOMM stream.
+     */
+    private static class TricklingInputStream extends ByteArrayInputStream {
+        private final int chunk;
+
+        TricklingInputStream(byte[] data, int chunk) {
+            super(data);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
+
+    private static byte[] payload(FrameReader reader) {
+        return Arrays.copyOfRange(reader.getBuffer(), reader.getFrameOffset(), reader.getFrameOffset() + reader.getFrameLength());
+    }
+
+    @Test
+    public void readFrame_splitsBulkReads() throws Exception {
+        byte[] stream = new byte[]{2, 10, 11, 0, 3, 20, 21, 22};
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(stream));
+        reader.readFrame();
+        assertArrayEquals(new byte[]{10, 11}, payload(reader));
+        reader.readFrame();
+        assertArrayEquals(new byte[0], payload(reader));
+        reader.readFrame();
+        assertArrayEquals(new byte[]{20, 21, 22}, payload(reader));
+    }
+
+    @Test
+    public void readFrame_reassemblesPartialReads() throws Exception {
+        byte[] stream = new byte[1 + 255 + 1 + 200];
+        stream[0] = (byte)255;
+        stream[256] = (byte)200;
+        for(int i = 0; i < 255; i++) {
+            stream[1 + i] = (byte)i;
+        }
+        InputStream in = new TricklingInputStream(stream, 7);
+        FrameReader reader = new FrameReader(in);
+        reader.readFrame();
+        byte[] first = payload(reader);
+        assertEquals(255, first.length);
+        assertEquals(254, first[254] & 0xFF);
+        reader.readFrame();
+        assertEquals(200, reader.getFrameLength());
+    }
+
+    @Test
+    public void readFrame_readsVarintFramesBeyondLegacyLimit() throws Exception {
+        SubmarineProtos.SubmarineMessage.Builder builder = SubmarineProtos.SubmarineMessage.newBuilder()
+                .setType(SubmarineProtos.SubmarineMessage.MessageType.DATA);
+        for(int i = 0; i < 100; i++) {
+            builder.addData(SubmarineProtos.Datum.newBuilder().setTimestamp(i).setDepth(i).setTemperature(20).setPressure(1));
+        }
+        SubmarineProtos.SubmarineMessage message = builder.build();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Framing.VARINT.writeFrame(message, out);
+        Framing.VARINT.writeFrame(message, out);
+        FrameReader reader = new FrameReader(new TricklingInputStream(out.toByteArray(), 64));
+        reader.setFraming(Framing.VARINT);
+        for(int i = 0; i < 2; i++) {
+            reader.readFrame();
+            assertEquals(message, SubmarineProtos.SubmarineMessage.parser().parseFrom(
+                    reader.getBuffer(), reader.getFrameOffset(), reader.getFrameLength()));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void writeFrame_rejectsLegacyFramesAboveLimit() throws IOException {
+        SubmarineProtos.SubmarineMessage.Builder builder = SubmarineProtos.SubmarineMessage.newBuilder()
+                .setType(SubmarineProtos.SubmarineMessage.MessageType.DATA);
+        for(int i = 0; i < 100; i++) {
+            builder.addData(SubmarineProtos.Datum.newBuilder().setTimestamp(i).setDepth(i).setTemperature(20).setPressure(1));
+        }
+        Framing.LEGACY.writeFrame(builder.build(), new ByteArrayOutputStream());
+    }
+
+    @Test(expected = EOFException.class)
+    public void readFrame_failsOnTruncatedFrame() throws IOException {
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(new byte[]{5, 1, 2}));
+        reader.readFrame();
+    }
+}
@@ -0,0 +1,94 @@
+package com.cvoltidioten.submarinecontrol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class MessagePublisherTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private static class RecordingSubscriber implements SubmarineConnector.SubmarineMessageSubscriber {
+        SubmarineConnector.MessageSubscription subscription;
+        final List<DecodedMessage> received = new ArrayList<>();
+        Throwable error;
+
+        @Override
+        public void onSubscribe(SubmarineConnector.MessageSubscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(DecodedMessage message) {
+            this.received.add(message);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+    }
+
+    private static DecodedMessage status() {
+        return new DecodedMessage(SubmarineProtos.SubmarineMessage.newBuilder()
+                .setType(SubmarineProtos.SubmarineMessage.MessageType.STATUS).build(), null);
+    }
+
+    @Test
+    public void publish_deliversOnlyRequestedMessages() throws Exception {
+        MessagePublisher publisher = new MessagePublisher(DIRECT, 4, 1000);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber, null);
+        publisher.publish(status());
+        publisher.publish(status());
+        publisher.publish(status());
+        assertEquals(0, subscriber.received.size());
+        subscriber.subscription.request(2);
+        assertEquals(2, subscriber.received.size());
+        subscriber.subscription.request(5);
+        assertEquals(3, subscriber.received.size());
+        publisher.publish(status());
+        assertEquals(4, subscriber.received.size());
+    }
+
+    @Test
+    public void request_signalsErrorOnNonPositiveDemand() throws Exception {
+        MessagePublisher publisher = new MessagePublisher(DIRECT, 4, 1000);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber, null);
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        // The subscription ended, so publishing must not block on its buffer.
+        for(int i = 0; i < 8; i++) {
+            publisher.publish(status());
+        }
+        assertEquals(0, subscriber.received.size());
+    }
+
+    @Test
+    public void publish_endsStalledSubscription() throws Exception {
+        MessagePublisher publisher = new MessagePublisher(DIRECT, 2, 10);
+        RecordingSubscriber stalled = new RecordingSubscriber();
+        RecordingSubscriber active = new RecordingSubscriber();
+        publisher.subscribe(stalled, null);
+        publisher.subscribe(active, null);
+        active.subscription.request(Long.MAX_VALUE);
+        for(int i = 0; i < 4; i++) {
+            publisher.publish(status());
+        }
+        assertTrue(stalled.error instanceof TimeoutException);
+        assertEquals(4, active.received.size());
+        // The stalled subscription ended and gets nothing further.
+        stalled.subscription.request(10);
+        assertEquals(0, stalled.received.size());
+    }
+}
@@ -0,0 +1,97 @@
+package com.cvoltidioten.submarinecontrol;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class PendingRequestsTest {
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void shutdown() {
+        this.scheduler.shutdownNow();
+    }
+
+    private static DecodedMessage message(SubmarineProtos.SubmarineMessage.MessageType type, long requestId) {
+        SubmarineProtos.SubmarineMessage.Builder builder = SubmarineProtos.SubmarineMessage.newBuilder().setType(type);
+        if(requestId != 0) {
+            SubmarineProtocol.setVarint(builder, SubmarineProtocol.REQUEST_ID_FIELD_NUMBER, requestId);
+        }
+        return new DecodedMessage(builder.build(), null);
+    }
+
+    @Test
+    public void complete_matchesByEchoedId() throws Exception {
+        PendingRequests requests = new PendingRequests(this.scheduler);
+        SubmarineResponse first = requests.add(SubmarineProtos.ControlMessage.MessageType.STATUS_REQUEST, 10000);
+        SubmarineResponse second = requests.add(SubmarineProtos.ControlMessage.MessageType.STATUS_REQUEST, 10000);
+        DecodedMessage answer = message(SubmarineProtos.SubmarineMessage.MessageType.STATUS, second.getCorrelationId());
+        assertTrue(requests.complete(answer));
+        assertFalse(first.isDone());
+        assertSame(answer.message, second.get());
+        // An id nobody waits for completes nothing, even if the type matches.
+        assertFalse(requests.complete(message(SubmarineProtos.SubmarineMessage.MessageType.STATUS, 1000)));
+        assertFalse(first.isDone());
+    }
+
+    @Test
+    public void complete_withoutIdMatchesOldestOfType() throws Exception {
+        PendingRequests requests = new PendingRequests(this.scheduler);
+        SubmarineResponse data = requests.add(SubmarineProtos.ControlMessage.MessageType.DATA_REQUEST, 10000);
+        SubmarineResponse first = requests.add(SubmarineProtos.ControlMessage.MessageType.STATUS_REQUEST, 10000);
+        SubmarineResponse second = requests.add(SubmarineProtos.ControlMessage.MessageType.STATUS_REQUEST, 10000);
+        assertTrue(requests.complete(message(SubmarineProtos.SubmarineMessage.MessageType.STATUS, 0)));
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+        assertFalse(data.isDone());
+        assertTrue(requests.complete(message(SubmarineProtos.SubmarineMessage.MessageType.STATUS, 0)));
+        assertTrue(second.isDone());
+        assertFalse(requests.complete(message(SubmarineProtos.SubmarineMessage.MessageType.STATUS, 0)));
+        assertFalse(data.isDone());
+    }
+
+    @Test
+    public void add_failsOnTimeout() throws Exception {
+        PendingRequests requests = new PendingRequests(this.scheduler);
+        SubmarineResponse response = requests.add(SubmarineProtos.ControlMessage.MessageType.STATUS_REQUEST, 10);
+        try {
+            response.get(5, TimeUnit.SECONDS);
+            fail("The request did not time out");
+        } catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        // The request timed out and is no longer pending.
+        assertFalse(requests.complete(message(SubmarineProtos.SubmarineMessage.MessageType.STATUS, 0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void add_rejectsUnansweredRequest() {
+        new PendingRequests(this.scheduler).add(SubmarineProtos.ControlMessage.MessageType.CANCEL_DIVE, 10000);
+    }
+
+    @Test
+    public void failAll_failsEveryPendingRequest() throws Exception {
+        PendingRequests requests = new PendingRequests(this.scheduler);
+        SubmarineResponse status = requests.add(SubmarineProtos.ControlMessage.MessageType.STATUS_REQUEST, 10000);
+        SubmarineResponse data = requests.add(SubmarineProtos.ControlMessage.MessageType.DATA_REQUEST, 10000);
+        IOException failure = new IOException("Connection lost");
+        requests.failAll(failure);
+        for(SubmarineResponse response : new SubmarineResponse[]{status, data}) {
+            try {
+                response.get();
+                fail("The request did not fail");
+            } catch(ExecutionException e) {
+                assertSame(failure, e.getCause());
+            }
+        }
+        assertFalse(requests.complete(message(SubmarineProtos.SubmarineMessage.MessageType.STATUS, 0)));
+    }
+}
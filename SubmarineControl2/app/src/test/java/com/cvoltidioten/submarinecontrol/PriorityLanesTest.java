@@ -0,0 +1,34 @@
+package com.cvoltidioten.submarinecontrol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PriorityLanesTest {
+    @Test
+    public void take_prefersHigherPriorityLanes() throws Exception {
+        PriorityLanes<String> lanes = new PriorityLanes<>(3, 4);
+        lanes.offer(2, "data1");
+        lanes.offer(1, "status");
+        lanes.offer(2, "data2");
+        lanes.offer(0, "cancel");
+        assertEquals(4, lanes.size());
+        assertEquals("cancel", lanes.take());
+        List<String> rest = new ArrayList<>();
+        assertEquals(3, lanes.drainTo(rest));
+        assertEquals(Arrays.asList("status", "data1", "data2"), rest);
+        assertNull(lanes.poll());
+    }
+
+    @Test
+    public void offer_boundsEachLaneSeparately() {
+        PriorityLanes<String> lanes = new PriorityLanes<>(2, 1);
+        assertTrue(lanes.offer(1, "data1"));
+        assertFalse(lanes.offer(1, "data2"));
+        assertTrue(lanes.offer(0, "cancel"));
+    }
+}
@@ -0,0 +1,109 @@
+package com.cvoltidioten.submarinecontrol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ReceiverDispatcherTest {
+    /**
+     * Queues the runnables until run() is called, like a busy executor.
+     */
+    private static class QueueingExecutor implements Executor {
+        private final List<Runnable> queue = new ArrayList<>();
+
+        @Override
+        public synchronized void execute(Runnable runnable) {
+            this.queue.add(runnable);
+        }
+
+        void run() {
+            while(true) {
+                Runnable runnable;
+                synchronized(this) {
+                    if(this.queue.isEmpty()) {
+                        return;
+                    }
+                    runnable = this.queue.remove(0);
+                }
+                runnable.run();
+            }
+        }
+    }
+
+    /**
+     * Records the messages delivered to it.
+     */
+    private static class RecordingDispatcher extends ReceiverDispatcher<String> {
+        final List<String> delivered = new ArrayList<>();
+
+        RecordingDispatcher(Executor executor, int laneCapacity) {
+            super("test", executor, 2, laneCapacity, SubmarineConnector.OverflowPolicy.BLOCK);
+        }
+
+        @Override
+        protected void deliver(String message) {
+            this.delivered.add(message);
+        }
+    }
+
+    @Test
+    public void dispatchReserved_deliversInOrderOfPriority() throws Exception {
+        QueueingExecutor executor = new QueueingExecutor();
+        RecordingDispatcher dispatcher = new RecordingDispatcher(executor, 2);
+        dispatcher.reserve();
+        dispatcher.reserve();
+        dispatcher.dispatchReserved(1, "data");
+        dispatcher.dispatchReserved(0, "status");
+        assertEquals(0, dispatcher.delivered.size());
+        executor.run();
+        assertEquals(Arrays.asList("status", "data"), dispatcher.delivered);
+    }
+
+    @Test(timeout = 5000)
+    public void reserve_waitsUntilSpaceIsTaken() throws Exception {
+        QueueingExecutor executor = new QueueingExecutor();
+        final RecordingDispatcher dispatcher = new RecordingDispatcher(executor, 1);
+        dispatcher.reserve();
+        dispatcher.dispatchReserved(1, "first");
+        final CountDownLatch reserved = new CountDownLatch(1);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dispatcher.reserve();
+                    reserved.countDown();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        reader.start();
+        assertFalse(reserved.await(100, TimeUnit.MILLISECONDS));
+        // Delivering the first message frees its space.
+        executor.run();
+        assertTrue(reserved.await(5, TimeUnit.SECONDS));
+        dispatcher.dispatchReserved(1, "second");
+        executor.run();
+        assertEquals(Arrays.asList("first", "second"), dispatcher.delivered);
+    }
+
+    @Test(timeout = 5000)
+    public void cancelReservation_givesBackSpace() throws Exception {
+        QueueingExecutor executor = new QueueingExecutor();
+        RecordingDispatcher dispatcher = new RecordingDispatcher(executor, 1);
+        dispatcher.reserve();
+        dispatcher.cancelReservation();
+        // Would wait forever if the space were still reserved.
+        dispatcher.reserve();
+        dispatcher.dispatchReserved(0, "status");
+        executor.run();
+        assertEquals(Arrays.asList("status"), dispatcher.delivered);
+    }
+}
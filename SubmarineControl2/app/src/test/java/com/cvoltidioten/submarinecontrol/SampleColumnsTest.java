@@ -0,0 +1,46 @@
+package com.cvoltidioten.submarinecontrol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SampleColumnsTest {
+    @Test
+    public void add_growsAndKeepsAllChannels() {
+        SampleColumns samples = new SampleColumns(2);
+        for(int i = 0; i < 1000; i++) {
+            samples.add(i, i * 0.5f, 20 - i * 0.01f, 1 + i);
+        }
+        assertEquals(1000, samples.size());
+        assertEquals(999, samples.getTimestamp(999));
+        assertEquals(499.5f, samples.getDepth(999), 0);
+        assertEquals(20 - 999 * 0.01f, samples.getTemperature(999), 0);
+        assertEquals(1000f, samples.getPressure(999), 0);
+    }
+
+    @Test
+    public void getTimestamp_isUnsigned() {
+        SampleColumns samples = new SampleColumns();
+        assertEquals(-1, samples.getLastTimestamp());
+        samples.add(0xFFFFFFFF, 0, 0, 0);
+        assertEquals(0xFFFFFFFFL, samples.getLastTimestamp());
+    }
+
+    @Test
+    public void unpack_restoresPackedSamples() {
+        SampleColumns samples = new SampleColumns();
+        for(int i = 0; i < 100; i++) {
+            samples.add(0xFFFFFF00 + i, i * 0.5f, 20 - i * 0.01f, 1 + i);
+        }
+        byte[] packed = samples.pack();
+        assertEquals(100 * SampleColumns.PACKED_SAMPLE_SIZE, packed.length);
+        SampleColumns unpacked = SampleColumns.unpack(packed);
+        assertEquals(100, unpacked.size());
+        for(int i = 0; i < 100; i++) {
+            assertEquals(samples.getTimestamp(i), unpacked.getTimestamp(i));
+            assertEquals(samples.getDepth(i), unpacked.getDepth(i), 0);
+            assertEquals(samples.getTemperature(i), unpacked.getTemperature(i), 0);
+            assertEquals(samples.getPressure(i), unpacked.getPressure(i), 0);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.cvoltidioten.submarinecontrol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StatusChannelTest {
+    /**
+     * Queues the runnables until run() is called, like a busy main looper.
+     */
+    private static class QueueingExecutor implements Executor {
+        private final List<Runnable> queue = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            this.queue.add(runnable);
+        }
+
+        void run() {
+            while(!this.queue.isEmpty()) {
+                this.queue.remove(0).run();
+            }
+        }
+    }
+
+    private static void publish(AtomicReference<SubmarineState> state, StatusChannel channel, SubmarineProtos.Status.StatusType type) {
+        state.set(state.get().withStatus(type));
+        channel.publish();
+    }
+
+    @Test
+    public void publish_conflatesPendingUpdates() {
+        final List<SubmarineState> received = new ArrayList<>();
+        QueueingExecutor executor = new QueueingExecutor();
+        AtomicReference<SubmarineState> state = new AtomicReference<>(SubmarineState.INITIAL);
+        StatusChannel channel = new StatusChannel(state);
+        channel.register("test", new Submarine.SubmarineStatusNotifyable() {
+            @Override
+            public void receiveStatus(SubmarineState state) {
+                received.add(state);
+            }
+        }, executor);
+        publish(state, channel, SubmarineProtos.Status.StatusType.DIVE_SCHEDULED);
+        publish(state, channel, SubmarineProtos.Status.StatusType.DIVING);
+        assertEquals(1, executor.queue.size());
+        executor.run();
+        assertEquals(1, received.size());
+        assertEquals(SubmarineProtos.Status.StatusType.DIVING, received.get(0).getStatus());
+    }
+
+    @Test
+    public void publish_schedulesAgainAfterDelivery() {
+        final List<SubmarineState> received = new ArrayList<>();
+        QueueingExecutor executor = new QueueingExecutor();
+        AtomicReference<SubmarineState> state = new AtomicReference<>(SubmarineState.INITIAL);
+        StatusChannel channel = new StatusChannel(state);
+        channel.register("test", new Submarine.SubmarineStatusNotifyable() {
+            @Override
+            public void receiveStatus(SubmarineState state) {
+                received.add(state);
+            }
+        }, executor);
+        executor.run();
+        publish(state, channel, SubmarineProtos.Status.StatusType.DIVING);
+        executor.run();
+        assertEquals(2, received.size());
+        assertEquals(SubmarineProtos.Status.StatusType.DIVING, received.get(1).getStatus());
+    }
+}
@@ -0,0 +1,57 @@
+package com.cvoltidioten.submarinecontrol;
+
+import java.util.Date;
+
+/**
+ * Creates dives for tests. The sample with the index i has the timestamp i, the depth i * 0.5 m,
+ * the temperature 20 - i * 0.01 °C and the pressure 1 + i bar. New dives are 10 m deep and have
+ * an offset of 30 s.
+ */
+final class TestDives {
+    private TestDives() {
+    }
+
+    /**
+     * Creates the samples with the indices from the first index to the last index.
+     * @param from The index of the first sample.
+     * @param to The index after the last sample.
+     * @return The samples.
+     */
+    static SampleColumns samples(int from, int to) {
+        SampleColumns samples = new SampleColumns(to - from);
+        for(int i = from; i < to; i++) {
+            samples.add(i, i * 0.5f, 20 - i * 0.01f, 1 + i);
+        }
+        return samples;
+    }
+
+    /**
+     * Creates a new dive with the given amount of samples.
+     * @param amountOfSamples The amount of samples.
+     * @return The dive.
+     */
+    static Dive linear(int amountOfSamples) {
+        return dive(samples(0, amountOfSamples));
+    }
+
+    /**
+     * Creates a new dive with the given samples.
+     * @param samples The samples of the dive.
+     * @return The dive.
+     */
+    static Dive dive(SampleColumns samples) {
+        Dive dive = new Dive(10, 30);
+        dive.addSamples(samples);
+        return dive;
+    }
+
+    /**
+     * Creates a dive with the given id, which also is its starting time, and amount of samples.
+     * @param id The id of the dive.
+     * @param amountOfSamples The amount of samples.
+     * @return The dive.
+     */
+    static Dive linear(long id, int amountOfSamples) {
+        return new Dive(id, 10, 30, new Date(id), samples(0, amountOfSamples));
+    }
+}